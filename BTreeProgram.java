@@ -1,26 +1,70 @@
 /**
- * B-Tree program that maintains a tree of degree 10 and takes in user commands to...
+ * B-Tree program that keeps an index file, with the degree of the tree set by its page format,
+ * and takes in user commands to...
  * - create an index file
  * - insert a key value pair
- * - search for a key and return the key value pair
- * - load in key value paris from a csv file
+ * - delete a key, or every key listed in a file
+ * - search for a key and return the key value pair, or search for every key listed in a file
+ * - load in key value pairs from a csv file
+ * - merge key value pairs from a csv file into a tree that already has keys
  * - print key value pairs from the tree
  * - extract key value pairs from tree to an output file
+ * - list the key value pairs in a key range
+ * - print statistics about the tree
+ * - rebuild the Bloom filter kept next to the index
+ * - compact the index into a new file with its blocks in key order
+ * - serve the index to clients over a socket
+ * see the README for the options each command takes
  */
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 public class BTreeProgram {
     // define some constants
     private static final String MAGIC = "4348PRJ3";
-    private static final int BLOCK_SIZE = 512;
-    private static final int MAX_DEGREE = 19;
-    private static final int CHILD_POINTERS  = 20;
+    // page size of files created without --page-size, and of files from before the header had a format version
+    private static final int DEFAULT_BLOCK_SIZE = 512;
+    // number of blocks the buffer pool keeps in memory unless --cache=N is given
+    private static final int DEFAULT_CACHE_BLOCKS = 1024;
+    // number of blocks walks of the whole tree read ahead at once unless --read-ahead=N is given, with one core
+    // the read-ahead threads only run while the walk waits for them, so it is off by default
+    private static final int DEFAULT_READ_AHEAD = Runtime.getRuntime().availableProcessors() > 1 ? 32 : 0;
+
+    // options given on the command line as --name=value, read by the command methods
+    private static final Map<String, String> options = new HashMap<>();
 
     /**
      * Main method that processes each command
@@ -34,8 +78,31 @@ public class BTreeProgram {
             return;
         }
 
+        // pull out any --name=value options so the positional checks below still line up
+        args = parseOptions(args);
+        if (args.length == 0) {
+            System.err.println("Error: There is no command");
+            return;
+        }
+
+        // check the options every command shares
+        String io = option("io", "file");
+        if (!io.equals("file") && !io.equals("mmap")) {
+            System.err.println("Error: --io must be file or mmap");
+            return;
+        }
+        // a mapped file can be written back by the system at any time, so it can't wait for checkpoints
+        if (io.equals("mmap") && options.containsKey("wal")) {
+            System.err.println("Error: --wal can't be used with --io=mmap");
+            return;
+        }
+
         // take in command + turn it to lowercase
         String command = args[0].toLowerCase();
+        if (args.length >= 2 && PartitionedIndex.UNSUPPORTED.contains(command) && PartitionedIndex.isManifest(args[1])) {
+            System.err.println("Error: " + command + " doesn't work on a partitioned index");
+            return;
+        }
 
         // switch statement
         switch(command) {
@@ -59,6 +126,26 @@ public class BTreeProgram {
                 insert(args[1], Long.parseLong(args[2]), Long.parseLong(args[3]));
                 break;
 
+            case "delete":
+                // if there is no second or third command give error
+                if (args.length < 3) {
+                    System.err.println("Error: Command needs a filename and key");
+                    return;
+                }
+                // call delete method
+                delete(args[1], Long.parseLong(args[2]));
+                break;
+
+            case "delete-batch":
+                // if there is no second or third command give error
+                if (args.length < 3) {
+                    System.err.println("Error: Command needs a filename and keys filename");
+                    return;
+                }
+                // call delete batch method
+                deleteBatch(args[1], args[2]);
+                break;
+
             case "search":
                 // if there is no second or third command give error
                 if (args.length < 3) {
@@ -66,7 +153,17 @@ public class BTreeProgram {
                     return;
                 }
                 // call search method
-                search(args[1], Integer.parseInt(args[2]));
+                search(args[1], Long.parseLong(args[2]));
+                break;
+
+            case "search-batch":
+                // if there is no second or third command give error
+                if (args.length < 3) {
+                    System.err.println("Error: Command needs a filename and keys filename");
+                    return;
+                }
+                // call search batch method, output file is optional
+                searchBatch(args[1], args[2], args.length >= 4 ? args[3] : null);
                 break;
 
             case "load":
@@ -79,6 +176,16 @@ public class BTreeProgram {
                 load(args[1], args[2]);
                 break;
 
+            case "merge":
+                // if there is no second or third command give error
+                if (args.length < 3) {
+                    System.err.println("Error: Command needs a filename and csv filename");
+                    return;
+                }
+                // call merge method
+                merge(args[1], args[2]);
+                break;
+
             case "print":
                 // if there is no second argument then give error
                 if (args.length < 2) {
@@ -99,13 +206,170 @@ public class BTreeProgram {
                 extract(args[1], args[2]);
                 break;
 
+            case "range":
+                // if there is no second, third, fourth command give an error
+                if (args.length < 4) {
+                    System.err.println("Error: Command needs a filename, low key, and high key");
+                    return;
+                }
+                // call range method
+                range(args[1], Long.parseLong(args[2]), Long.parseLong(args[3]));
+                break;
+
+            case "stats":
+                // if there is no second argument then give error
+                if (args.length < 2) {
+                    System.err.println("Error: Command needs a filename");
+                    return;
+                }
+                // call stats method
+                stats(args[1]);
+                break;
+
+            case "rebuild-filter":
+                // if there is no second argument then give error
+                if (args.length < 2) {
+                    System.err.println("Error: Command needs a filename");
+                    return;
+                }
+                // call rebuild filter method
+                rebuildFilter(args[1]);
+                break;
+
+            case "compact":
+                // if there is no second or third command give error
+                if (args.length < 3) {
+                    System.err.println("Error: Command needs a filename and another filename");
+                    return;
+                }
+                // call compact method
+                compact(args[1], args[2]);
+                break;
+
+            case "serve":
+                // if there is no second argument then give error
+                if (args.length < 2) {
+                    System.err.println("Error: Command needs a filename");
+                    return;
+                }
+                // call serve method
+                serve(args[1]);
+                break;
+
             default:
                 System.err.println("Error: Unknown command");
         }
     }
 
+    /**
+     * method that removes --name=value options from the arguments and saves them in the options map
+     * an option without a value (--name) is saved as "true"
+     * @param args user inputs command
+     * @return the remaining positional arguments
+     */
+    private static String[] parseOptions(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.length() > 2) {
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    options.put(arg.substring(2).toLowerCase(), "true");
+                } else {
+                    options.put(arg.substring(2, equals).toLowerCase(), arg.substring(equals + 1));
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+        return positional.toArray(new String[0]);
+    }
+
+    /**
+     * method that returns an option given on the command line, or a default if it wasn't given
+     * @param name name of option
+     * @param defaultValue value to use if option is missing
+     * @return option value
+     */
+    private static String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * method that creates the tree for an open index file, with a buffer pool of --cache=N blocks
+     * --io=mmap memory maps the file instead of reading and writing it with seek (--io=file)
+     * --wal keeps a write-ahead log next to the index file, and a log left by a crash is always replayed
+     * --read-ahead=N lets extract, print, range and stats read up to N blocks ahead of the node they are on (0 turns it off)
+     * a Bloom filter made by rebuild-filter is used, and kept up to date, whenever it is next to the index file
+     * @param filename name of index file
+     * @param indexFile instance of index file
+     * @return tree instance
+     * @throws IOException
+     */
+    private static BTree openTree(String filename, RandomAccessFile indexFile) throws IOException {
+        return openTree(filename, indexFile, true);
+    }
+
+    /**
+     * method that creates the tree for an open index file, without its Bloom filter if withFilter is false
+     * @param filename name of index file
+     * @param indexFile instance of index file
+     * @param withFilter false to leave the filter out, for replacing it
+     * @return tree instance
+     * @throws IOException
+     */
+    private static BTree openTree(String filename, RandomAccessFile indexFile, boolean withFilter) throws IOException {
+        int cacheBlocks = Integer.parseInt(option("cache", String.valueOf(DEFAULT_CACHE_BLOCKS)));
+        String io = option("io", "file");
+        // the stores need the page size before anything else is read
+        int blockSize = PageFormat.read(indexFile).blockSize;
+        BlockStore store;
+        if (io.equals("mmap")) {
+            store = new MappedBlockStore(indexFile.getChannel(), blockSize);
+        } else {
+            store = new FileBlockStore(indexFile, blockSize);
+        }
+        BTree tree = new BTree(store, Math.max(cacheBlocks, 1), new File(filename + ".wal"), options.containsKey("wal"));
+        // old block images for snapshots go next to the index
+        tree.versions.directory = new File(filename).getAbsoluteFile().getParentFile();
+        tree.pool.readAhead(Integer.parseInt(option("read-ahead", String.valueOf(DEFAULT_READ_AHEAD))));
+        File filterFile = new File(filename + ".bloom");
+        if (withFilter && filterFile.exists()) tree.filter = BloomFilter.read(filterFile);
+        return tree;
+    }
+
+    /**
+     * method that prints the buffer pool and tree counters to stderr if --cache-stats was given
+     * @param tree tree whose counters to report
+     */
+    private static void reportCache(BTree tree) {
+        if (options.containsKey("cache-stats")) {
+            PrintWriter err = new PrintWriter(System.err, true);
+            tree.stats.print(err);
+        }
+    }
+
+    /**
+     * method that prints each partition's counters to stderr if --cache-stats was given
+     * @param index partitioned index whose counters to report
+     */
+    private static void reportCache(PartitionedIndex index) {
+        if (options.containsKey("cache-stats")) {
+            PrintWriter err = new PrintWriter(System.err, true);
+            for (int i = 0; i < index.count; i++) {
+                err.println("partition " + i + ":");
+                index.trees[i].stats.print(err);
+            }
+        }
+    }
+
     /**
      * method that initiates an index file
+     * --page-size=N gives the size of its blocks (a power of two from 512 to 65536), bigger pages hold more keys
+     * per node so the tree has fewer levels
+     * --encoding=packed stores nodes as varints instead of fixed 8-byte fields, so close keys take less room
+     * --layout=bplus makes a B+tree, values are only kept in leaves and each leaf points to the next one
+     * --partitions=N makes filename a manifest of N index files with these options, that keys are spread between
      * @param filename name of index file to be created
      * @throws IOException
      */
@@ -116,15 +380,64 @@ public class BTreeProgram {
             System.err.println("Error: File already exists");
             return;
         }
+        int blockSize = Integer.parseInt(option("page-size", String.valueOf(DEFAULT_BLOCK_SIZE)));
+        if (!PageFormat.isValidBlockSize(blockSize)) {
+            System.err.println("Error: Page size must be a power of two from " + PageFormat.MIN_BLOCK_SIZE
+                    + " to " + PageFormat.MAX_BLOCK_SIZE);
+            return;
+        }
+        String encoding = option("encoding", "fixed");
+        if (!encoding.equals("fixed") && !encoding.equals("packed")) {
+            System.err.println("Error: --encoding must be fixed or packed");
+            return;
+        }
+        String layout = option("layout", "btree");
+        if (!layout.equals("btree") && !layout.equals("bplus")) {
+            System.err.println("Error: --layout must be btree or bplus");
+            return;
+        }
+        PageFormat format = PageFormat.forBlockSize(blockSize, encoding.equals("packed") ? PageFormat.PACKED : PageFormat.FIXED,
+                layout.equals("bplus") ? PageFormat.BPLUS : PageFormat.BTREE);
+
+        if (options.containsKey("partitions")) {
+            int partitions = Integer.parseInt(option("partitions", "1"));
+            if (partitions < 1) {
+                System.err.println("Error: --partitions must be at least 1");
+                return;
+            }
+            for (int i = 0; i < partitions; i++) {
+                if (Files.exists(Paths.get(PartitionedIndex.partitionFile(filename, i)))) {
+                    System.err.println("Error: File already exists");
+                    return;
+                }
+            }
+            PartitionedIndex.writeManifest(filename, partitions);
+            for (int i = 0; i < partitions; i++) {
+                createIndexFile(PartitionedIndex.partitionFile(filename, i), format);
+            }
+            return;
+        }
+        createIndexFile(filename, format);
+    }
 
+    /**
+     * method that writes the header of a new, empty index file
+     * @param filename name of index file to be created
+     * @param format page format of the file
+     * @throws IOException
+     */
+    private static void createIndexFile(String filename, PageFormat format) throws IOException {
+        int blockSize = format.blockSize;
         // create an index file here and write in header
         try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
             // divide file into blocks
-            ByteBuffer header = ByteBuffer.allocate(BLOCK_SIZE);
-            // put in magic number, root id = 0, and next block id = 1 and write to file
+            ByteBuffer header = ByteBuffer.allocate(blockSize);
+            // put in magic number, root id = 0, next block id = 1, no free blocks, and the page format
             header.put(MAGIC.getBytes());
             header.putLong(0);
             header.putLong(1);
+            header.putLong(0);
+            format.write(header);
             indexFile.write(header.array());
         }
     }
@@ -143,11 +456,15 @@ public class BTreeProgram {
             System.err.println("Error: File does not exist");
             return;
         }
+        // a partitioned index only opens the partition that owns the key
+        if (PartitionedIndex.isManifest(filename)) filename = PartitionedIndex.fileFor(filename, key);
 
         // create instance of file, pass it to instance of bTree, and insert key/value
         try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
-            BTree tree = new BTree(indexFile);
-            tree.insert(indexFile, key, value);
+            BTree tree = openTree(filename, indexFile);
+            tree.insert(key, value);
+            tree.close();
+            reportCache(tree);
         }
     }
 
@@ -163,529 +480,6449 @@ public class BTreeProgram {
             System.err.println("Error: File does not exist");
             return;
         }
+        // a partitioned index only opens the partition that owns the key
+        if (PartitionedIndex.isManifest(filename)) filename = PartitionedIndex.fileFor(filename, key);
 
         // create instance of file, pass it to instance of bTree, and search for key
         try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
-            BTree tree = new BTree(indexFile);
-            Long value = BTree.search(indexFile, key);
+            BTree tree = openTree(filename, indexFile);
+            Long value = tree.search(key);
             // print out the returned value if it exists, give error if it doesn't
             if (value != null) {
                 System.out.println(key + "," + value);
             } else {
                 System.err.println("Error: key was not found");
             }
+            tree.close();
+            reportCache(tree);
         }
     }
 
     /**
-     * method that reads each line from a csv file and calls insert method
+     * method that looks up every key in a file (one per line) with a single walk of the tree
+     * each key is written as key,value if it was found and as key, (no value) if it wasn't, in key order
      * @param filename name of index file
-     * @param csvFile name of csv file
+     * @param keysFile name of file with the keys to look up
+     * @param outputFile name of file to write results to, or null for stdout
      */
-    private static void load(String filename, String csvFile) throws IOException {
-        String line;
-
-        //If the file does not exist or if the file is not a valid index file then exit with an error.
+    private static void searchBatch(String filename, String keysFile, String outputFile) throws IOException {
+        // If the file does not exist or if the file is not a valid index file then exit with an error.
         Path filePath = Paths.get(filename);
         if (!Files.exists(filePath)) {
             System.err.println("Error: File does not exist");
             return;
         }
-
-        //If the csv file does not exist, the exit with an error message
-        Path csvFilePath = Paths.get(csvFile);
-        if (!Files.exists(csvFilePath)) {
+        Path keysFilePath = Paths.get(keysFile);
+        if (!Files.exists(keysFilePath)) {
             System.err.println("Error: File does not exist");
             return;
         }
+        if (outputFile != null && Files.exists(Paths.get(outputFile))) {
+            System.err.println("Error: File already exists");
+            return;
+        }
+
+        long[] keys = readKeys(keysFile);
 
-        // read each line from csv file and call insert command
         try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw");
-             BufferedReader reader = new BufferedReader(new FileReader(csvFile))) {
-            BTree tree = new BTree(indexFile);
-            // as long as there is a line
-            while ((line = reader.readLine()) != null) {
-                // Each line of the file is a comma separated key/value pair
-                String[] pairParts = line.split(",");
-                // extract the key and value from the array
-                if (pairParts.length >= 2) {
-                    long keyValue = Long.parseLong(pairParts[0].trim());
-                    long val = Long.parseLong(pairParts[1].trim());
-                    tree.insert(indexFile, keyValue, val);
+             PrintWriter writer = new PrintWriter(new BufferedWriter(outputFile != null
+                     ? new FileWriter(outputFile) : new OutputStreamWriter(System.out), 1 << 16))) {
+            BTree tree = openTree(filename, indexFile);
+            tree.searchBatch(keys, keys.length, (key, found, value) -> {
+                if (found) {
+                    writer.println(key + "," + value);
+                } else {
+                    writer.println(key + ",");
                 }
+            });
+            writer.flush();
+            tree.close();
+            reportCache(tree);
+        }
+    }
+
+    /**
+     * method that reads every key in a file (one per line), a line can also be a csv pair and only the key is used
+     * @param keysFile name of file with the keys
+     * @return the keys sorted, without repeats
+     * @throws IOException
+     */
+    private static long[] readKeys(String keysFile) throws IOException {
+        long[] keys = new long[1024];
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(keysFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.indexOf(',');
+                String key = (comma >= 0 ? line.substring(0, comma) : line).trim();
+                if (key.isEmpty()) continue;
+                if (count == keys.length) keys = Arrays.copyOf(keys, count * 2);
+                keys[count++] = Long.parseLong(key);
             }
         }
+
+        // sort the keys and drop repeats so the tree can be walked in order
+        Arrays.sort(keys, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || keys[distinct - 1] != keys[i]) keys[distinct++] = keys[i];
+        }
+        return Arrays.copyOf(keys, distinct);
     }
 
     /**
-     * method that creates an instance of B-Tree in order to print key value pairs
-     * @param filename name of index file to print
+     * method that creates instance of B-Tree in order to delete a key
+     * @param filename name of index file
+     * @param key key to delete
+     * @throws IOException
      */
-    private static void print(String filename) throws IOException{
-        // If the file does not exist or if the file is not a valid index file then exit with an error
+    private static void delete(String filename, long key) throws IOException {
+        // if file doesn't already exist, fail with error message
         Path filePath = Paths.get(filename);
         if (!Files.exists(filePath)) {
             System.err.println("Error: File does not exist");
             return;
         }
+        // a partitioned index only opens the partition that owns the key
+        if (PartitionedIndex.isManifest(filename)) filename = PartitionedIndex.fileFor(filename, key);
 
-        // create btree instance and pass in index file, call print method
+        // create instance of file, pass it to instance of bTree, and delete the key
         try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
-            BTree tree = new BTree(indexFile);
-            tree.print(indexFile);
+            BTree tree = openTree(filename, indexFile);
+            if (!tree.delete(key)) {
+                System.err.println("Error: key was not found");
+            }
+            tree.close();
+            reportCache(tree);
         }
     }
 
     /**
-     * method that outputs key value paris to a file
+     * method that deletes every key in a file (one per line) and prints how many were in the index
+     * the keys are deleted in order, so the nodes they are in are still cached from the key before
      * @param filename name of index file
-     * @param outputFile name of file to output to
+     * @param keysFile name of file with the keys to delete
+     * @throws IOException
      */
-    private static void extract(String filename, String outputFile) throws IOException{
+    private static void deleteBatch(String filename, String keysFile) throws IOException {
         // If the file does not exist or if the file is not a valid index file then exit with an error.
         Path filePath = Paths.get(filename);
         if (!Files.exists(filePath)) {
             System.err.println("Error: File does not exist");
             return;
         }
-
-        //If the second file exists, exit with an error message
-        Path outputFilePath = Paths.get(outputFile);
-        if (Files.exists(outputFilePath)) {
-            System.err.println("Error: File already exists");
+        Path keysFilePath = Paths.get(keysFile);
+        if (!Files.exists(keysFilePath)) {
+            System.err.println("Error: File does not exist");
             return;
         }
 
-        //The file should remain unmodified. Save every key/value pair in the index as comma separated pairs to the file.
-        try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw");
-             PrintWriter writer = new PrintWriter(new FileWriter(outputFile))) {
-            BTree tree = new BTree(indexFile);
-            tree.extract(indexFile, writer);
+        long[] keys = readKeys(keysFile);
+
+        try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
+            BTree tree = openTree(filename, indexFile);
+            int deleted = 0;
+            for (long key : keys) {
+                if (tree.delete(key)) deleted++;
+            }
+            // write every changed block once, at the end
+            tree.close();
+            System.out.println("deleted " + deleted + " of " + keys.length + " keys");
+            reportCache(tree);
         }
     }
 
     /**
-     * Tree class that handles actions regarding the index file the tree is on and actions that change structure of tree
+     * method that reads each row from a csv file and calls insert method
+     * if the index is still empty, the pairs are sorted and the tree is built bottom-up instead
+     * (fill factor of the built nodes can be given with --fill=0.9)
+     * the csv is parsed on its own thread, rows that aren't two numbers are reported with their line and skipped
+     * @param filename name of index file
+     * @param csvFile name of csv file
      */
-    static class BTree {
-        static long rootID;
-        static long nextBlockID;
-
-        /**
-         * BTree constructor, reads in the file header
-         * @param indexFile instance of file
-         * @throws IOException
-         */
-        BTree (RandomAccessFile indexFile) throws IOException {
-            // go to index 0 on file
-            indexFile.seek(0);
-            // take in first 8 bytes and read them into an array representing magic number
-            byte[] magicBytes = new byte[8];
-            indexFile.readFully(magicBytes);
-            // read the next 2 longs and save it as the root ID and next block ID
-            rootID = indexFile.readLong();
-            nextBlockID = indexFile.readLong();
+    private static void load(String filename, String csvFile) throws IOException {
+        //If the file does not exist or if the file is not a valid index file then exit with an error.
+        Path filePath = Paths.get(filename);
+        if (!Files.exists(filePath)) {
+            System.err.println("Error: File does not exist");
+            return;
         }
 
-        /**
-         * method to write header to index file after any changes, such as insertions
-         * @param file instance of file
-         * @throws IOException
-         */
-        void writeHeader(RandomAccessFile file) throws IOException {
-            file.seek(0);
-            file.writeBytes(MAGIC);
-            file.writeLong(rootID);
-            file.writeLong(nextBlockID);
+        //If the csv file does not exist, the exit with an error message
+        Path csvFilePath = Paths.get(csvFile);
+        if (!Files.exists(csvFilePath)) {
+            System.err.println("Error: File does not exist");
+            return;
         }
 
-        /**
-         * method to insert key value pair in a node
-         * two ways to insert --> if tree has no root, or if tree already has root
-         * @param file instance of index file
-         * @param key key to insert
-         * @param value value to insert
-         * @throws IOException
-         */
-        void insert(RandomAccessFile file, long key, long value) throws IOException {
-            // if tree is empty, insert new node as the root
-            if (rootID == 0) {
-                // create a root node instance
-                BTreeNode root = new BTreeNode(nextBlockID);
-
-                // insert key value pair into the node's array and write to file
-                root.insert(key, value);
-                root.write(file);
-
-                // increase the root ID and next block ID
-                rootID = nextBlockID;
-                nextBlockID++;
-
-                // write the changed header back to file
-                writeHeader(file);
-            } else {
-                // Get root info (# of keys) by returning an instance of node class
-                BTreeNode root = readNode(file, rootID);
-                // if root number of keys is greater than 19, you have to split root
-                if (root.numKeys >= 19) {
-                    // create a new root node
-                    BTreeNode newRoot = new BTreeNode(nextBlockID);
-                    // insert the old root ID as a child in the new root
-                    newRoot.childPointers.add(rootID);
-                    // this should be a new method splitOldRoot
-                    splitRoot(file, newRoot, 0);
-                    // write to file
-                    newRoot.write(file);
-                    // increase the root ID and next block ID
-                    rootID = nextBlockID;
-                    nextBlockID++;
-                    // insert key and value normally --> create new method
-                    insertNormally(file, newRoot, key, value);
-                } else {
-                    // insert key and value normally in root --> create new method
-                    insertNormally(file, root, key, value);
-                }
-                // write the changed header back to file
-                writeHeader(file);
-            }
+        if (PartitionedIndex.isManifest(filename)) {
+            loadPartitioned(filename, csvFilePath);
+            return;
         }
 
-        /**
-         * method to insert a key value pair in a node that still has space
-         * two ways to insert --> into a node with children and one without
-         * @param file instance of file
-         * @param node instance of node we are inserting into
-         * @param key key to insert
-         * @param value value to insert
-         * @throws IOException
-         */
-        void insertNormally(RandomAccessFile file, BTreeNode node, long key, long value) throws IOException {
-            // set key size to i
-            int i = node.keys.size() - 1;
-            // if the node to insert key is a leaf node
-            if (node.childPointers.isEmpty()) {
-                // start from end and work backward and key is less than current key
-                while (i >= 0 && key < node.keys.get(i)) {
-                    i--;
-                }
-                // you found the place to insert value
-                // if given key equals current key, set that place in array to given value
-                if (i >= 0 && key == node.keys.get(i)) {
-                    node.values.set(i, value);
-                } else {
-                    // if given key doesn't equal current key, then place value one after current index
-                    node.keys.add(i + 1, key);
-                    node.values.add(i + 1, value);
-                }
-                // update the amount of keys and write to file
-                node.numKeys = node.keys.size();
-                node.write(file);
-
-            // if the node to insert key has children
-            } else {
-                // start from end and work backward until key is greater than current key
-                // i will tell us that given key is greater then key[i]
-                while (i >= 0 && key < node.keys.get(i)) {
-                    i--;
-                }
-                // increment i to get the child pointer (in between keys)
-                i++;
-                // get info from child node of blockID i
-                BTreeNode child = readNode(file, node.childPointers.get(i));
-                // see if child is full, if it is split it
-                if (child.keys.size() >= 19) {
-                    splitRoot(file, node, i);
-                    // decide if key belongs in left or right child
-                    // if key greater than i (mid) increment i go to right child
-                    if (key > node.keys.get(i)) {
-                        i++;
-                    }
-                    // reread correct child since after split, child pointers could've changed
-                    child = readNode(file, node.childPointers.get(i));
-                }
-                // recursive call back to function
-                insertNormally(file, child, key, value);
-            }
+        // checked before the tree is opened, it's only used if the index turns out to be empty
+        double fillFactor = Double.parseDouble(option("fill", "0.9"));
+        if (fillFactor <= 0 || fillFactor > 1) {
+            System.err.println("Error: Fill factor must be greater than 0 and at most 1");
+            return;
         }
 
-        /**
-         * method that splits the child node of the parent node we pass in
-         * @param file instance of file
-         * @param parent instance of node we pass in
-         * @param i refers to child pointer index
-         * @throws IOException
-         */
-        void splitRoot(RandomAccessFile file, BTreeNode parent, int i) throws IOException {
-            // create left child instance of passed node
-            BTreeNode left = readNode(file, parent.childPointers.get(i));
-            // create a right child instance of passed node
-            BTreeNode right = new BTreeNode(nextBlockID);
-            nextBlockID++;
-
-            // get middle key index from left node
-            int midIndex = left.keys.size() / 2;
-            // get mid key and mid value
-            long midKey = left.keys.get(midIndex);
-            long midValue = left.values.get(midIndex);
+        // read each row from csv file and call insert command
+        try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw");
+             CsvReader reader = new CsvReader(csvFilePath)) {
+            BTree tree = openTree(filename, indexFile);
 
-            // loop through left node from mid to end and put those values in right node
-            for (int j = midIndex + 1; j < left.keys.size(); j++) {
-                right.keys.add(left.keys.get(j));
-                right.values.add(left.values.get(j));
+            // an empty index can be bulk built, which is much faster and packs the nodes
+            BulkLoader loader = null;
+            if (tree.rootID == 0) {
+                loader = new BulkLoader(fillFactor, filePath.toAbsolutePath().getParent().toFile());
             }
 
-            // loop through left node from mid to end and put those values in right node
-            if (!left.childPointers.isEmpty()) {
-                for (int j = midIndex + 1; j < left.childPointers.size(); j++) {
-                    right.childPointers.add(left.childPointers.get(j));
+            // as long as there are rows, the reader parses the next batch while this one is added
+            CsvReader.Batch batch;
+            while ((batch = reader.next()) != null) {
+                for (int i = 0; i < batch.count; i++) {
+                    if (loader != null) {
+                        loader.add(batch.keys[i], batch.values[i]);
+                    } else {
+                        tree.insert(batch.keys[i], batch.values[i]);
+                    }
                 }
+                reader.recycle(batch);
             }
-
-            // set num of keys to right amount
-            right.numKeys = right.keys.size();
-            right.write(file);
-
-            // delete from mid-index to end from left child instance
-            left.keys.subList(midIndex, left.keys.size()).clear();
-            left.values.subList(midIndex, left.values.size()).clear();
-            if(!left.childPointers.isEmpty()) {
-                left.childPointers.subList(midIndex + 1, left.childPointers.size()).clear();
+            if (reader.malformed() > 0) {
+                System.err.println("Warning: " + reader.malformed() + " malformed rows were skipped");
             }
 
-            // set num of keys to right amount
-            left.numKeys = left.keys.size();
-            left.write(file);
-
-            // write in the new parent info
-            parent.keys.add(i, midKey);
-            parent.values.add(i, midValue);
-            parent.childPointers.add(i + 1, right.blockID);
-            parent.numKeys = parent.keys.size();
-            parent.write(file);
+            // once every pair is read, sort them and write out the tree
+            if (loader != null) {
+                loader.build(indexFile, tree);
+            }
+            // write every changed block once, at the end
+            tree.close();
+            reportCache(tree);
         }
+    }
 
-        /**
-         * method to search for key
-         * @param indexFile instance of index file
+    /**
+     * method that load and merge use for a partitioned index, the rows are spread between the partitions as they are
+     * parsed and every partition is built (or merged into, if it has keys) on its own thread
+     * @param filename name of manifest
+     * @param csvFilePath csv file
+     * @throws IOException
+     */
+    private static void loadPartitioned(String filename, Path csvFilePath) throws IOException {
+        double fillFactor = Double.parseDouble(option("fill", "0.9"));
+        if (fillFactor <= 0 || fillFactor > 1) {
+            System.err.println("Error: Fill factor must be greater than 0 and at most 1");
+            return;
+        }
+        try (CsvReader reader = new CsvReader(csvFilePath)) {
+            PartitionedIndex index = PartitionedIndex.open(filename);
+            try {
+                index.load(reader, fillFactor);
+            } finally {
+                index.close();
+            }
+            if (reader.malformed() > 0) {
+                System.err.println("Warning: " + reader.malformed() + " malformed rows were skipped");
+            }
+            reportCache(index);
+        }
+    }
+
+    /**
+     * method that adds or updates every pair of a csv file in an index that already has keys
+     * the pairs are sorted first (spilling runs next to the index if they don't fit in memory), then each leaf
+     * is gone down to once for all of its keys instead of once per key
+     * rows that aren't two numbers are reported with their line and skipped, and the last value of a key wins
+     * @param filename name of index file
+     * @param csvFile name of csv file
+     */
+    private static void merge(String filename, String csvFile) throws IOException {
+        //If the file does not exist or if the file is not a valid index file then exit with an error.
+        Path filePath = Paths.get(filename);
+        if (!Files.exists(filePath)) {
+            System.err.println("Error: File does not exist");
+            return;
+        }
+
+        //If the csv file does not exist, the exit with an error message
+        Path csvFilePath = Paths.get(csvFile);
+        if (!Files.exists(csvFilePath)) {
+            System.err.println("Error: File does not exist");
+            return;
+        }
+
+        // a partition is only merged into if it already has keys, so this is the same as load
+        if (PartitionedIndex.isManifest(filename)) {
+            loadPartitioned(filename, csvFilePath);
+            return;
+        }
+
+        try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw");
+             CsvReader reader = new CsvReader(csvFilePath)) {
+            BTree tree = openTree(filename, indexFile);
+
+            // the loader only sorts here, so the fill factor is never used
+            BulkLoader loader = new BulkLoader(1, filePath.toAbsolutePath().getParent().toFile());
+            CsvReader.Batch batch;
+            while ((batch = reader.next()) != null) {
+                for (int i = 0; i < batch.count; i++) {
+                    loader.add(batch.keys[i], batch.values[i]);
+                }
+                reader.recycle(batch);
+            }
+            if (reader.malformed() > 0) {
+                System.err.println("Warning: " + reader.malformed() + " malformed rows were skipped");
+            }
+
+            loader.sorted(tree::upsert);
+            tree.close();
+            reportCache(tree);
+        }
+    }
+
+    /**
+     * method that creates an instance of B-Tree in order to print key value pairs, in key order
+     * it is extract with stdout as the file, so it takes the same --threads and --format options
+     * @param filename name of index file to print
+     */
+    private static void print(String filename) throws IOException{
+        // If the file does not exist or if the file is not a valid index file then exit with an error
+        Path filePath = Paths.get(filename);
+        if (!Files.exists(filePath)) {
+            System.err.println("Error: File does not exist");
+            return;
+        }
+        int[] output = outputOptions();
+        if (output == null) return;
+
+        // the partitions' pairs are merged on one thread, so --threads isn't used
+        if (PartitionedIndex.isManifest(filename)) {
+            PartitionedIndex index = PartitionedIndex.open(filename);
+            try {
+                index.write(Long.MIN_VALUE, Long.MAX_VALUE, System.out, output[1]);
+                System.out.flush();
+            } finally {
+                index.close();
+            }
+            reportCache(index);
+            return;
+        }
+
+        // create btree instance and pass in index file, write its pairs to stdout in big chunks
+        try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
+            BTree tree = openTree(filename, indexFile);
+            tree.extract(System.out, output[0], output[1]);
+            System.out.flush();
+            tree.close();
+            reportCache(tree);
+        }
+    }
+
+    /**
+     * method that reads the options print and extract share
+     * --threads=N is how many threads read and format parts of the tree (default one per core)
+     * --format=text writes "key, value" lines (the default), --format=binary writes each pair as two little-endian longs
+     * @return threads and PairEncoder format, or null if an option was wrong (after printing why)
+     */
+    private static int[] outputOptions() {
+        int threads = Integer.parseInt(option("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (threads < 1) {
+            System.err.println("Error: --threads must be at least 1");
+            return null;
+        }
+        String format = option("format", "text");
+        if (!format.equals("text") && !format.equals("binary")) {
+            System.err.println("Error: --format must be text or binary");
+            return null;
+        }
+        return new int[] {threads, format.equals("binary") ? PairEncoder.BINARY : PairEncoder.TEXT};
+    }
+
+    /**
+     * method that outputs key value paris to a file, in key order
+     * parts of the tree are read and formatted on --threads=N threads (default one per core),
+     * and --format=binary writes 16-byte pairs instead of text
+     * @param filename name of index file
+     * @param outputFile name of file to output to
+     */
+    private static void extract(String filename, String outputFile) throws IOException{
+        // If the file does not exist or if the file is not a valid index file then exit with an error.
+        Path filePath = Paths.get(filename);
+        if (!Files.exists(filePath)) {
+            System.err.println("Error: File does not exist");
+            return;
+        }
+
+        //If the second file exists, exit with an error message
+        Path outputFilePath = Paths.get(outputFile);
+        if (Files.exists(outputFilePath)) {
+            System.err.println("Error: File already exists");
+            return;
+        }
+
+        int[] output = outputOptions();
+        if (output == null) return;
+
+        // the partitions' pairs are merged on one thread, so --threads isn't used
+        if (PartitionedIndex.isManifest(filename)) {
+            PartitionedIndex index = PartitionedIndex.open(filename);
+            try (OutputStream writer = new FileOutputStream(outputFile)) {
+                index.write(Long.MIN_VALUE, Long.MAX_VALUE, writer, output[1]);
+            } finally {
+                index.close();
+            }
+            reportCache(index);
+            return;
+        }
+
+        //The file should remain unmodified. Save every key/value pair in the index as comma separated pairs to the file.
+        try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw");
+             OutputStream writer = new FileOutputStream(outputFile)) {
+            BTree tree = openTree(filename, indexFile);
+            tree.extract(writer, output[0], output[1]);
+            tree.close();
+            reportCache(tree);
+        }
+    }
+
+    /**
+     * method that prints every key value pair with lo <= key <= hi, in key order
+     * @param filename name of index file
+     * @param lo lowest key to print
+     * @param hi highest key to print
+     */
+    private static void range(String filename, long lo, long hi) throws IOException {
+        // If the file does not exist or if the file is not a valid index file then exit with an error
+        Path filePath = Paths.get(filename);
+        if (!Files.exists(filePath)) {
+            System.err.println("Error: File does not exist");
+            return;
+        }
+        if (lo > hi) {
+            System.err.println("Error: Low key is bigger than high key");
+            return;
+        }
+
+        if (PartitionedIndex.isManifest(filename)) {
+            PartitionedIndex index = PartitionedIndex.open(filename);
+            try {
+                index.write(lo, hi, System.out, PairEncoder.TEXT);
+                System.out.flush();
+            } finally {
+                index.close();
+            }
+            reportCache(index);
+            return;
+        }
+
+        // walk the range with a cursor and print each pair
+        try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
+            BTree tree = openTree(filename, indexFile);
+            PairEncoder encoder = new PairEncoder(PairEncoder.TEXT);
+            try (BTree.Cursor cursor = tree.cursor(lo, hi)) {
+                while (cursor.next()) {
+                    encoder.add(cursor.key, cursor.value);
+                    encoder.writeIfFull(System.out);
+                }
+            }
+            encoder.writeTo(System.out);
+            System.out.flush();
+            tree.close();
+            reportCache(tree);
+        }
+    }
+
+    /**
+     * method that prints the shape of the tree (height, nodes, fill) and the file, then what reading all of it took
+     * @param filename name of index file
+     */
+    private static void stats(String filename) throws IOException {
+        // If the file does not exist or if the file is not a valid index file then exit with an error
+        Path filePath = Paths.get(filename);
+        if (!Files.exists(filePath)) {
+            System.err.println("Error: File does not exist");
+            return;
+        }
+        // each partition is its own tree, so each gets its own stats
+        if (PartitionedIndex.isManifest(filename)) {
+            for (int i = 0; i < PartitionedIndex.readCount(filename); i++) {
+                System.out.println("partition " + i + ": " + PartitionedIndex.partitionFile(filename, i));
+                stats(PartitionedIndex.partitionFile(filename, i));
+            }
+            return;
+        }
+
+        try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
+            BTree tree = openTree(filename, indexFile);
+            BTree.Shape shape = tree.shape();
+            PageFormat format = tree.format;
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+            out.println("file: " + indexFile.length() + " bytes, " + tree.nextBlockID + " blocks of "
+                    + format.blockSize + " bytes, " + shape.freeBlocks + " free");
+            out.println("format: version " + format.version + ", " + (format.bplus ? "B+tree" : "B-tree") + " of "
+                    + (format.packed ? "packed" : "fixed") + " nodes of at most " + format.maxDegree + " keys");
+            out.println("height: " + shape.height);
+            out.println("nodes: " + shape.nodes + " (" + shape.leaves + " leaves, "
+                    + (shape.nodes - shape.leaves) + " with children)");
+            out.println("keys: " + shape.keys + (format.bplus ? " (" + shape.pairs + " in leaves)" : ""));
+            // a packed node is full when its bytes run out, a fixed one when its key slots do
+            if (shape.nodes > 0 && format.packed) {
+                out.printf("fill: %.1f%% of each block's bytes%n", 100.0 * shape.bytes / shape.nodes / format.blockSize);
+            } else if (shape.nodes > 0) {
+                out.printf("fill: %.1f%% of each node's keys%n", 100.0 * shape.keys / shape.nodes / format.maxDegree);
+            }
+            tree.stats.print(out);
+            out.flush();
+            tree.close();
+        }
+    }
+
+    /**
+     * method that rewrites an index into a new file, with its nodes filled to --fill (default 0.9) again and written
+     * in key order, each node right after its children, so walks of the tree read the file front to back
+     * the source is walked in order and the new tree is built from it as it goes, so neither is held in memory
+     * the new file is written under a temp name next to the output and moved into place once it is all on disk,
+     * so a crash leaves the old output (or none), and an index compacted into itself is replaced the same way
+     * @param filename name of index file
+     * @param outputFile name of compacted index file, can be the same as filename
+     * @throws IOException
+     */
+    private static void compact(String filename, String outputFile) throws IOException {
+        // If the file does not exist or if the file is not a valid index file then exit with an error
+        Path filePath = Paths.get(filename);
+        if (!Files.exists(filePath)) {
+            System.err.println("Error: File does not exist");
+            return;
+        }
+        Path outputFilePath = Paths.get(outputFile);
+        boolean inPlace = Files.exists(outputFilePath) && Files.isSameFile(filePath, outputFilePath);
+        if (Files.exists(outputFilePath) && !inPlace) {
+            System.err.println("Error: File already exists");
+            return;
+        }
+        double fillFactor = Double.parseDouble(option("fill", "0.9"));
+        if (fillFactor <= 0 || fillFactor > 1) {
+            System.err.println("Error: Fill factor must be greater than 0 and at most 1");
+            return;
+        }
+
+        File directory = outputFilePath.toAbsolutePath().getParent().toFile();
+        File temp = File.createTempFile("compact", ".idx", directory);
+        try {
+            long oldBlocks;
+            long newBlocks;
+            try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
+                BTree source = openTree(filename, indexFile, false);
+                PageFormat format = source.format;
+                // same page size, encoding and layout, in the current header version
+                createIndexFile(temp.getPath(), PageFormat.forBlockSize(format.blockSize,
+                        format.packed ? PageFormat.PACKED : PageFormat.FIXED, format.bplus ? PageFormat.BPLUS : PageFormat.BTREE));
+                try (RandomAccessFile tempFile = new RandomAccessFile(temp, "rw")) {
+                    BTree target = openTree(temp.getPath(), tempFile, false);
+                    new BulkLoader(fillFactor, directory).copy(source, tempFile, target);
+                    target.close();
+                    newBlocks = target.nextBlockID;
+                    tempFile.getChannel().force(true);
+                }
+                oldBlocks = source.nextBlockID;
+                source.close();
+                reportCache(source);
+            }
+            Files.move(temp.toPath(), outputFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("compacted " + oldBlocks + " blocks into " + newBlocks);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * method that makes a new Bloom filter with every key of the index and puts it next to the index file
+     * (filename.idx.bloom), from then on lookups of keys it doesn't have skip the tree and changes keep it up to date
+     * --fp-rate=0.01 sets how often a missing key still has to be looked up once the filter holds --filter-keys keys
+     * (default the number of keys in the index), a filter that grows past that gives more false positives until rebuilt
+     * @param filename name of index file
+     * @throws IOException
+     */
+    private static void rebuildFilter(String filename) throws IOException {
+        // If the file does not exist or if the file is not a valid index file then exit with an error
+        Path filePath = Paths.get(filename);
+        if (!Files.exists(filePath)) {
+            System.err.println("Error: File does not exist");
+            return;
+        }
+        // each partition has its own filter, sized for its own keys
+        if (PartitionedIndex.isManifest(filename)) {
+            for (int i = 0; i < PartitionedIndex.readCount(filename); i++) {
+                rebuildFilter(PartitionedIndex.partitionFile(filename, i));
+            }
+            return;
+        }
+        double fpRate = Double.parseDouble(option("fp-rate", "0.01"));
+        if (!(fpRate > 0 && fpRate < 1)) {
+            System.err.println("Error: --fp-rate must be between 0 and 1");
+            return;
+        }
+
+        try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
+            // the old filter is replaced, so it isn't read (or changed) meanwhile
+            BTree tree = openTree(filename, indexFile, false);
+            long capacity = Math.max(tree.shape().pairs, Long.parseLong(option("filter-keys", "0")));
+            BloomFilter filter = new BloomFilter(new File(filename + ".bloom"), Math.max(capacity, BloomFilter.MIN_KEYS), fpRate);
+            try (BTree.Cursor cursor = tree.cursor(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                while (cursor.next()) filter.add(cursor.key);
+            }
+            tree.close();
+            // written to a temp file and moved over the old one, so a crash leaves one filter or the other
+            filter.close();
+            System.out.printf("Filter of %d keys in %d bits with %d hashes, %.2f%% expected false positives%n",
+                    filter.added.sum(), filter.bits, filter.hashes, filter.expectedFpRate() * 100);
+            reportCache(tree);
+        }
+    }
+
+    /**
+     * method that registers a tree's counters with the platform MBean server, so JMX clients like jconsole can
+     * watch them while the index is served
+     * @param filename name of index file, used to tell trees apart
+     * @param tree tree whose counters to register
+     * @return name it was registered under, or null if it couldn't be
+     */
+    private static ObjectName registerStats(String filename, BTree tree) {
+        try {
+            ObjectName name = new ObjectName("BTreeProgram:type=Index,file="
+                    + ObjectName.quote(new File(filename).getAbsolutePath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(tree.stats, IndexStatsMBean.class), name);
+            return name;
+        } catch (JMException e) {
+            System.err.println("Warning: counters are not available over JMX: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * method that takes a tree's counters back out of the platform MBean server
+     * @param name name returned by registerStats, or null
+     */
+    private static void unregisterStats(ObjectName name) {
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // it is only gone a little early
+        }
+    }
+
+    /**
+     * method that keeps the index open and answers requests until shutdown
+     * requests are read from stdin, or from clients on a loopback socket if --port=N is given
+     * @param filename name of index file
+     */
+    private static void serve(String filename) throws IOException {
+        // If the file does not exist or if the file is not a valid index file then exit with an error
+        Path filePath = Paths.get(filename);
+        if (!Files.exists(filePath)) {
+            System.err.println("Error: File does not exist");
+            return;
+        }
+
+        try (RandomAccessFile indexFile = new RandomAccessFile(filename, "rw")) {
+            BTree tree = openTree(filename, indexFile);
+            IndexServer server = new IndexServer(tree);
+            ObjectName statsName = registerStats(filename, tree);
+            // changed blocks still get written if the server is killed
+            Thread exitFlush = new Thread(server::flushOnExit);
+            Runtime.getRuntime().addShutdownHook(exitFlush);
+
+            String port = options.get("port");
+            if (port != null) {
+                server.listen(Integer.parseInt(port));
+            } else {
+                server.session(new BufferedReader(new InputStreamReader(System.in)),
+                        new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out))));
+            }
+
+            server.close();
+            Runtime.getRuntime().removeShutdownHook(exitFlush);
+            unregisterStats(statsName);
+            PrintWriter err = new PrintWriter(System.err, true);
+            server.printLatency(err);
+            reportCache(tree);
+        }
+    }
+
+    /**
+     * Tree class that handles actions regarding the index file the tree is on and actions that change structure of tree
+     * the tree can be used by many threads at once:
+     * - every node's page has a latch, readers hold it shared and writers exclusive
+     * - going down, the child is latched before the parent is let go (latch crabbing)
+     * - inserts first go down with shared latches and only latch the leaf exclusively, and start over
+     *   with exclusive latches from the root if the leaf is full, since then the split can reach upward
+     * - rootLatch guards which block is the root, so nobody starts at a root that is being split
+     * - print, extract and cursors read a snapshot, so they see the tree as it was when they started
+     * - searchBatch copies one node at a time from the live tree, so it shouldn't run alongside inserts
+     * with a write-ahead log, changed blocks stay in the pool until a checkpoint writes them all at once,
+     * so the index file on disk is always the last checkpoint and the log holds everything after it
+     */
+    static class BTree {
+        // a checkpoint is started once the log is this big or half the pool is changed blocks
+        private static final long CHECKPOINT_LOG_BYTES = 64L << 20;
+        private static final long CHECKPOINT_INTERVAL_MS = 1000;
+
+        // extract cuts the tree into at least this many pieces per thread, of about this many pairs at most,
+        // and has this many pieces per thread walked ahead of the one being written
+        private static final int EXTRACT_PIECES_PER_THREAD = 8;
+        private static final int EXTRACT_PIECE_PAIRS = 1 << 16;
+        private static final int EXTRACT_AHEAD = 2;
+
+        // results of changeInLeaf and the delete methods besides a log position
+        private static final long GAVE_UP = -1;
+        private static final long NOT_FOUND = -2;
+
+        volatile long rootID;
+        // only changed through allocateBlock and appendBlock
+        long nextBlockID;
+        // first block of the free list (0 if it is empty), each free block holds the next one's ID in its first 8 bytes
+        long freeListHead;
+
+        // every block read or written by the tree goes through the pool
+        final BufferPool pool;
+        private final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock();
+        // log of changes since the last checkpoint, or null if inserts aren't logged
+        WriteAheadLog wal;
+        // keys that might be in the tree, so most lookups of missing keys stop before the root, or null if there's none
+        BloomFilter filter;
+        // inserts hold it shared while they change nodes, checkpoints and new snapshots hold it exclusive
+        // so they only ever see the tree in between inserts
+        private final ReentrantReadWriteLock changeLock = new ReentrantReadWriteLock();
+        // page size and node size of the file, from its header
+        final PageFormat format;
+        // old images of blocks that open snapshots still read
+        final PageVersions versions;
+        // what the tree has done since it was opened
+        final IndexStats stats = new IndexStats(this);
+        private final Object checkpointSignal = new Object();
+        private Thread checkpointer;
+        private volatile boolean closing;
+        // nodes that were released and can be reused for the next read, one list per thread
+        private final ThreadLocal<ArrayDeque<BTreeNode>> freeNodes = ThreadLocal.withInitial(ArrayDeque::new);
+
+        /**
+         * BTree constructor, reads in the file header using a pool of the default size
+         * @param indexFile instance of file
+         * @throws IOException
+         */
+        BTree (RandomAccessFile indexFile) throws IOException {
+            this(indexFile, DEFAULT_CACHE_BLOCKS);
+        }
+
+        /**
+         * BTree constructor, reads in the file header
+         * @param indexFile instance of file
+         * @param cacheBlocks number of blocks the buffer pool can hold
+         * @throws IOException
+         */
+        BTree (RandomAccessFile indexFile, int cacheBlocks) throws IOException {
+            this(new FileBlockStore(indexFile, PageFormat.read(indexFile).blockSize), cacheBlocks);
+        }
+
+        /**
+         * BTree constructor, reads in the file header
+         * @param store where the index file's blocks are read from and written to
+         * @param cacheBlocks number of blocks the buffer pool can hold
+         * @throws IOException
+         */
+        BTree (BlockStore store, int cacheBlocks) throws IOException {
+            pool = new BufferPool(store, cacheBlocks);
+            // header is block 0
+            BufferPool.Page header = pool.pin(0);
+            format = PageFormat.read(header.data);
+            if (format.blockSize != store.blockSize()) {
+                pool.unpin(header, false);
+                throw new IOException("Index file has " + format.blockSize + "-byte pages, not " + store.blockSize());
+            }
+            versions = new PageVersions(format.blockSize);
+            // skip the first 8 bytes representing magic number
+            // read the next 3 longs and save it as the root ID, next block ID and free list (0 in older files)
+            rootID = header.data.getLong(8);
+            nextBlockID = header.data.getLong(16);
+            freeListHead = header.data.getLong(24);
+            pool.unpin(header, false);
+        }
+
+        /**
+         * BTree constructor, reads in the file header and replays the write-ahead log if it has anything in it
+         * @param store where the index file's blocks are read from and written to
+         * @param cacheBlocks number of blocks the buffer pool can hold
+         * @param walFile where the log is kept
+         * @param logging true to keep logging inserts, false to only replay what is there and remove the log
+         * @throws IOException
+         */
+        BTree (BlockStore store, int cacheBlocks, File walFile, boolean logging) throws IOException {
+            this(store, cacheBlocks);
+            if (!logging && !walFile.exists()) return;
+
+            WriteAheadLog log = new WriteAheadLog(walFile, format.blockSize);
+            // changed blocks only reach the index file through checkpoints from here on
+            pool.noSteal = true;
+            wal = log;
+            if (log.size() > 0) {
+                // replayed inserts aren't logged again, the checkpoint right after puts them in the index file
+                wal = null;
+                replay(log);
+                wal = log;
+                checkpoint();
+            }
+            if (!logging) {
+                wal = null;
+                pool.noSteal = false;
+                log.delete();
+                return;
+            }
+            checkpointer = new Thread(this::runCheckpoints, "checkpointer");
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
+
+        /**
+         * method to write header after any changes, such as insertions
+         * it only changes the cached header block, which gets written out on flush
+         * @throws IOException
+         */
+        void writeHeader() throws IOException {
+            stats.headerWrites.increment();
+            BufferPool.Page header = latch(0, true);
+            for (int i = 0; i < MAGIC.length(); i++) {
+                header.data.put(i, (byte) MAGIC.charAt(i));
+            }
+            header.data.putLong(8, rootID);
+            synchronized (this) {
+                header.data.putLong(16, nextBlockID);
+                header.data.putLong(24, freeListHead);
+            }
+            header.latch.writeLock().unlock();
+            pool.unpin(header, true);
+        }
+
+        /**
+         * method that hands out an unused block, a freed one if there is one so the file only grows when it is full
+         * @return id of the block
+         * @throws IOException
+         */
+        synchronized long allocateBlock() throws IOException {
+            if (freeListHead == 0) {
+                return nextBlockID++;
+            }
+            long blockID = freeListHead;
+            BufferPool.Page page = pool.pin(blockID);
+            freeListHead = page.data.getLong(0);
+            pool.unpin(page, false);
+            if (wal != null) wal.appendAlloc(blockID, freeListHead);
+            return blockID;
+        }
+
+        /**
+         * method that hands out the block at the end of the file, used when blocks have to be in order
+         * @return id of the block
+         */
+        synchronized long appendBlock() {
+            return nextBlockID++;
+        }
+
+        /**
+         * method that puts a block that isn't part of the tree anymore on the free list
+         * the block has to be latched exclusively by the caller or not reachable anymore
+         * @param blockID block to free
+         * @throws IOException
+         */
+        synchronized void freeBlock(long blockID) throws IOException {
+            BufferPool.Page page = pool.pin(blockID);
+            versions.keep(blockID, page.data);
+            for (int i = 0; i < format.blockSize; i += 8) {
+                page.data.putLong(i, 0);
+            }
+            page.data.putLong(0, freeListHead);
+            pool.unpin(page, true);
+            if (wal != null) wal.appendFree(blockID, freeListHead);
+            freeListHead = blockID;
+        }
+
+        /**
+         * method that writes every changed block back to the index file, called once at the end of a command
+         * with a log this is a checkpoint
+         * @throws IOException
+         */
+        void flush() throws IOException {
+            if (wal != null) {
+                checkpoint();
+            } else {
+                pool.flush();
+            }
+        }
+
+        /**
+         * method that flushes and lets the block store clean up, called once at the end of a command
+         * the log is empty after the last checkpoint, so it is removed
+         * @throws IOException
+         */
+        void close() throws IOException {
+            closing = true;
+            pool.stopReadAhead();
+            if (checkpointer != null) {
+                synchronized (checkpointSignal) {
+                    checkpointSignal.notifyAll();
+                }
+                try {
+                    checkpointer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            flush();
+            synchronized (this) {
+                pool.store.close(nextBlockID);
+            }
+            if (wal != null) {
+                wal.delete();
+            }
+            // only saved once every key it has is in the file
+            if (filter != null) {
+                filter.close();
+            }
+        }
+
+        /**
+         * method that writes every changed block to the index file and empties the log
+         * the blocks' images are logged and forced first, so a crash while they are written in place
+         * is repaired by the next replay instead of leaving a torn tree
+         * @throws IOException
+         */
+        void checkpoint() throws IOException {
+            changeLock.writeLock().lock();
+            try {
+                List<BufferPool.Page> dirtyPages = pool.pinDirtyPages();
+                try {
+                    long position;
+                    synchronized (this) {
+                        position = wal.appendCheckpoint(rootID, nextBlockID, freeListHead, dirtyPages);
+                    }
+                    wal.commit(position);
+                } catch (IOException e) {
+                    for (BufferPool.Page page : dirtyPages) pool.unpin(page, false);
+                    throw e;
+                }
+                pool.writeAndUnpin(dirtyPages);
+                pool.store.sync();
+                wal.truncate();
+            } finally {
+                changeLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * @return true once the log or the changed blocks have grown enough that a checkpoint should run
+         */
+        private boolean needsCheckpoint() {
+            return wal.size() >= CHECKPOINT_LOG_BYTES || pool.dirtyCount() >= pool.capacity() / 2;
+        }
+
+        /**
+         * loop of the background checkpoint thread, it checks every second or when an insert asks
+         */
+        private void runCheckpoints() {
+            while (!closing) {
+                try {
+                    synchronized (checkpointSignal) {
+                        checkpointSignal.wait(CHECKPOINT_INTERVAL_MS);
+                    }
+                    if (!closing && (needsCheckpoint() || wal.size() > 0)) {
+                        checkpoint();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    System.err.println("Error: checkpoint failed: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * method that applies the log to the tree, starting at its last checkpoint
+         * the index file can be newer than the log's start where a checkpoint was cut off,
+         * which is why the checkpoint's block images go first
+         * @param log log to replay
+         * @throws IOException
+         */
+        private void replay(WriteAheadLog log) throws IOException {
+            log.replay((type, payload) -> {
+                switch (type) {
+                    case WriteAheadLog.INSERT:
+                        insert(payload.getLong(), payload.getLong());
+                        break;
+                    case WriteAheadLog.DELETE:
+                        delete(payload.getLong());
+                        break;
+                    case WriteAheadLog.PAGES:
+                        long newRoot = payload.getLong();
+                        restorePages(payload);
+                        if (newRoot != 0) rootID = newRoot;
+                        break;
+                    case WriteAheadLog.FREE:
+                        freeBlock(payload.getLong());
+                        break;
+                    case WriteAheadLog.ALLOC:
+                        payload.getLong();
+                        freeListHead = payload.getLong();
+                        break;
+                    case WriteAheadLog.CHECKPOINT:
+                        rootID = payload.getLong();
+                        nextBlockID = payload.getLong();
+                        freeListHead = payload.getLong();
+                        restorePages(payload);
+                        break;
+                    default:
+                        throw new IOException("Unknown log record " + type);
+                }
+            });
+            writeHeader();
+        }
+
+        /**
+         * method that copies logged block images back into the pool
+         * @param payload count followed by block ID and image pairs
+         * @throws IOException
+         */
+        private void restorePages(ByteBuffer payload) throws IOException {
+            int count = payload.getInt();
+            for (int i = 0; i < count; i++) {
+                long blockID = payload.getLong();
+                BufferPool.Page page = pool.pinForWrite(blockID);
+                ByteBuffer image = payload.slice();
+                image.limit(format.blockSize);
+                page.data.clear();
+                page.data.put(image);
+                page.data.clear();
+                pool.unpin(page, true);
+                payload.position(payload.position() + format.blockSize);
+                nextBlockID = Math.max(nextBlockID, blockID + 1);
+            }
+        }
+
+        /**
+         * method that logs a key put into a node
+         * @return log position of the record, or 0 with no log
+         */
+        private long logInsert(long key, long value) {
+            return wal != null ? wal.appendInsert(key, value) : 0;
+        }
+
+        /**
+         * method that logs a key taken out of a leaf
+         * @return log position of the record, or 0 with no log
+         */
+        private long logDelete(long key) {
+            return wal != null ? wal.appendDelete(key) : 0;
+        }
+
+        /**
+         * method that logs whole nodes that changed together, along with the root if the first one is it
+         * the caller holds every node latched exclusively, so the root can't change under it
+         * @return log position of the record, or 0 with no log
+         */
+        private long logPages(BTreeNode... nodes) {
+            return logPages(nodes[0].blockID == rootID ? rootID : 0, nodes);
+        }
+
+        /**
+         * method that logs whole nodes that changed together
+         * @param newRoot root ID if the root changed, otherwise 0
+         * @return log position of the record, or 0 with no log
+         */
+        private long logPages(long newRoot, BTreeNode... nodes) {
+            return wal != null ? wal.appendPages(newRoot, nodes) : 0;
+        }
+
+        /**
+         * method to insert key value pair in a node
+         * most inserts only change one leaf, so they are first tried while holding as little as possible
+         * @param key key to insert
+         * @param value value to insert
+         * @throws IOException
+         */
+        void insert(long key, long value) throws IOException {
+            // the key is in the filter before it can be found in the tree, so a lookup never misses it
+            if (filter != null) filter.add(key);
+            // checkpoints and new snapshots wait for inserts that are changing nodes, but not for ones waiting on the log
+            long position;
+            changeLock.readLock().lock();
+            try {
+                position = changeInLeaf(key, value, false);
+                if (position == GAVE_UP) position = insertFromRoot(key, value);
+            } finally {
+                changeLock.readLock().unlock();
+            }
+            if (wal == null) return;
+
+            commit(position);
+        }
+
+        /**
+         * method to delete a key
+         * like insert, it first tries to only change a leaf, and otherwise goes down from the root while no
+         * other insert or delete is changing nodes, since borrowing and merging can reach any node on the way
+         * @param key key to delete
+         * @return true if the key was in the tree
+         * @throws IOException
+         */
+        boolean delete(long key) throws IOException {
+            long position;
+            changeLock.readLock().lock();
+            try {
+                position = changeInLeaf(key, 0, true);
+            } finally {
+                changeLock.readLock().unlock();
+            }
+            if (position == GAVE_UP) {
+                changeLock.writeLock().lock();
+                try {
+                    position = deleteFromRoot(key);
+                } finally {
+                    changeLock.writeLock().unlock();
+                }
+            }
+            if (position == NOT_FOUND) return false;
+            if (wal != null) commit(position);
+            return true;
+        }
+
+        /**
+         * method that waits for a change to be in the log on disk, and wakes the checkpoint thread if needed
+         * @param position log position of the change
+         * @throws IOException
+         */
+        private void commit(long position) throws IOException {
+            // the change is finished once its record is on disk, one fsync covers every change waiting for it
+            wal.commit(position);
+            if (needsCheckpoint()) {
+                synchronized (checkpointSignal) {
+                    checkpointSignal.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * method that inserts or deletes by going down with shared latches and only latching the leaf exclusively
+         * it gives up, changing nothing, if the change could reach past the leaf (an insert into a full leaf,
+         * a delete from a leaf with the fewest keys it can have) or the key is in a node with children
+         * @param key key to insert or delete
+         * @param value value to insert
+         * @param delete true to delete the key instead
+         * @return log position of the change (0 with no log), GAVE_UP, or NOT_FOUND for a delete of a missing key
+         * @throws IOException
+         */
+        private long changeInLeaf(long key, long value, boolean delete) throws IOException {
+            rootLatch.readLock().lock();
+            boolean holdingRoot = true;
+            BufferPool.Page parent = null;
+            BufferPool.Page page = null;
+            try {
+                long currentID = rootID;
+                if (currentID == 0) return delete ? NOT_FOUND : GAVE_UP;
+                page = latch(currentID, false);
+                while (true) {
+                    ByteBuffer block = page.data;
+                    int i = format.findKey(block, key);
+                    boolean leaf = format.isLeaf(block);
+                    // changing a key in a node with children is left to the methods going down from the root, it is rare
+                    // (a B+tree key there is only a separator, the key itself is in the leaf below it)
+                    if (i >= 0 && !leaf && !format.bplus) return GAVE_UP;
+
+                    if (leaf) {
+                        // trade the shared latch for an exclusive one, the latch still held on the parent
+                        // (or on which block is the root) keeps the leaf from being split in between
+                        unlatch(page, false);
+                        page = null;
+                        BufferPool.Page exclusive = latch(currentID, true);
+                        BTreeNode node = newNode(currentID);
+                        try {
+                            node.decode(exclusive.data);
+                            i = node.findKey(key);
+                            if (delete) {
+                                if (i < 0) return NOT_FOUND;
+                                // a root leaf can go down to no keys, any other leaf has to keep enough
+                                if (parent != null && !node.hasSpare()) return GAVE_UP;
+                                node.removeAt(i);
+                                writeNode(node);
+                                return logDelete(key);
+                            }
+                            if (i >= 0) {
+                                // a packed value can take more bytes than the one it replaces
+                                long oldValue = node.values[i];
+                                node.values[i] = value;
+                                if (!node.fits()) {
+                                    node.values[i] = oldValue;
+                                    return GAVE_UP;
+                                }
+                            } else if (!node.isFull()) {
+                                node.insertAt(-i - 1, key, value);
+                            } else {
+                                return GAVE_UP;
+                            }
+                            writeNode(node);
+                            return logInsert(key, value);
+                        } finally {
+                            releaseNode(node);
+                            unlatch(exclusive, true);
+                        }
+                    }
+
+                    // latch the child before letting go of the node above this one
+                    currentID = format.childAt(block, format.bplus ? PageFormat.childFor(i) : -i - 1);
+                    BufferPool.Page child = latch(currentID, false);
+                    if (parent != null) unlatch(parent, false);
+                    // once past the root, the latch on it is what keeps it from being split
+                    if (holdingRoot) {
+                        rootLatch.readLock().unlock();
+                        holdingRoot = false;
+                    }
+                    parent = page;
+                    page = child;
+                }
+            } finally {
+                if (page != null) unlatch(page, false);
+                if (parent != null) unlatch(parent, false);
+                if (holdingRoot) rootLatch.readLock().unlock();
+            }
+        }
+
+        /**
+         * method that inserts by going down from the root with exclusive latches, splitting every full node on the way
+         * the node above is let go as soon as the node below has room, since a split can't reach past it
+         * @param key key to insert
+         * @param value value to insert
+         * @return log position of the insert, 0 with no log
+         * @throws IOException
+         */
+        private long insertFromRoot(long key, long value) throws IOException {
+            rootLatch.writeLock().lock();
+            boolean holdingRoot = true;
+            BufferPool.Page page = null;
+            BTreeNode node = null;
+            try {
+                // if tree is empty, insert new node as the root
+                if (rootID == 0) {
+                    // create a root node instance
+                    BTreeNode root = newNode(allocateBlock());
+
+                    // insert key value pair into the node's array and write to file
+                    root.insert(key, value);
+                    writeNode(root);
+
+                    // the new node is the root, write the changed header back
+                    rootID = root.blockID;
+                    writeHeader();
+                    long position = logPages(root);
+                    releaseNode(root);
+                    return position;
+                }
+
+                // Get root info (# of keys) by returning an instance of node class
+                page = latch(rootID, true);
+                node = newNode(rootID);
+                node.decode(page.data);
+                // if root number of keys is greater than 19, you have to split root
+                if (node.isFull()) {
+                    // create a new root node, it takes the next block before the split uses any
+                    stats.rootSplits.increment();
+                    BTreeNode newRoot = newNode(allocateBlock());
+                    BufferPool.Page newRootPage = latch(newRoot.blockID, true);
+                    // insert the old root ID as a child in the new root
+                    newRoot.addChild(node.blockID);
+                    // the new node is now the root
+                    rootID = newRoot.blockID;
+                    // split writes the new root along with both halves of the old one
+                    splitRoot(newRoot, 0, node);
+                    unlatch(page, true);
+                    releaseNode(node);
+                    page = newRootPage;
+                    node = newRoot;
+                }
+                writeHeader();
+                // the root has room now, so it can't change again until this insert lets go of it
+                rootLatch.writeLock().unlock();
+                holdingRoot = false;
+
+                while (true) {
+                    // binary search the node for the key
+                    int i = node.findKey(key);
+                    // if given key equals current key, set that place in array to given value
+                    // (this works for nodes with children too, the key doesn't need to go any further down,
+                    // unless it is a B+tree separator)
+                    if (i >= 0 && (!format.bplus || node.isLeaf())) {
+                        node.values[i] = value;
+                        writeNode(node);
+                        return logInsert(key, value);
+                    }
+                    // otherwise i is the index of the first key bigger than the given key
+                    i = format.bplus ? PageFormat.childFor(i) : -i - 1;
+
+                    // if the node to insert key is a leaf node, you found the place to insert value
+                    if (node.isLeaf()) {
+                        node.insertAt(i, key, value);
+                        writeNode(node);
+                        return logInsert(key, value);
+                    }
+
+                    // child pointer i is the one in between key[i - 1] and key[i]
+                    BufferPool.Page childPage = latch(node.childPointers[i], true);
+                    BTreeNode child = newNode(node.childPointers[i]);
+                    child.decode(childPage.data);
+                    // see if child is full, if it is split it
+                    if (child.isFull()) {
+                        splitRoot(node, i, child);
+                        writeHeader();
+                        // the key that moved up might be the one we are inserting (a B+tree leaf only
+                        // copies its key up, the key is still in the right leaf)
+                        if (key == node.keys[i] && !format.bplus) {
+                            node.values[i] = value;
+                            writeNode(node);
+                            releaseNode(child);
+                            unlatch(childPage, true);
+                            return logInsert(key, value);
+                        }
+                        // if key isn't less than the key that moved up, go to the new right child instead
+                        if (key >= node.keys[i]) {
+                            releaseNode(child);
+                            unlatch(childPage, true);
+                            childPage = latch(node.childPointers[i + 1], true);
+                            child = newNode(node.childPointers[i + 1]);
+                            child.decode(childPage.data);
+                        }
+                    }
+                    // the child has room, so this node is done with
+                    unlatch(page, true);
+                    releaseNode(node);
+                    page = childPage;
+                    node = child;
+                }
+            } finally {
+                if (node != null) releaseNode(node);
+                if (page != null) unlatch(page, true);
+                if (holdingRoot) rootLatch.writeLock().unlock();
+            }
+        }
+
+        /**
+         * method that inserts or updates a batch of pairs with distinct keys in order, far cheaper than inserting
+         * them one at a time when there are many, since each leaf is gone down to once for all of its keys in the batch
+         * the header is written once at the end instead of after every split
+         * @param keys keys in order, no key twice
+         * @param values value of each key
+         * @param count number of pairs
+         * @throws IOException
+         */
+        void upsert(long[] keys, long[] values, int count) throws IOException {
+            if (filter != null) {
+                for (int i = 0; i < count; i++) filter.add(keys[i]);
+            }
+            long[] position = new long[1];
+            int next = 0;
+            while (next < count) {
+                changeLock.readLock().lock();
+                try {
+                    next = mergeFromRoot(keys, values, next, count, position);
+                } finally {
+                    changeLock.readLock().unlock();
+                }
+                // a big batch changes far more blocks than one insert, so they are written out as soon as there are enough
+                if (wal != null && needsCheckpoint()) checkpoint();
+            }
+            writeHeader();
+            if (wal != null) commit(position[0]);
+        }
+
+        /**
+         * method that goes down from the root to the leaf of the next key, splitting every full node on the way
+         * like insertFromRoot, then puts every following key that belongs in the same leaf into it while it has room
+         * the leaf is logged as one record, however many keys went into it
+         * @param keys keys in order
+         * @param values value of each key
+         * @param from index of the next key to put in
+         * @param count number of pairs
+         * @param position set to the log position of the last change, left alone with no log
+         * @return index of the first key that wasn't put in
+         * @throws IOException
+         */
+        private int mergeFromRoot(long[] keys, long[] values, int from, int count, long[] position) throws IOException {
+            long key = keys[from];
+            rootLatch.writeLock().lock();
+            boolean holdingRoot = true;
+            BufferPool.Page page = null;
+            BTreeNode node = null;
+            try {
+                if (rootID == 0) {
+                    rootLatch.writeLock().unlock();
+                    holdingRoot = false;
+                    position[0] = insertFromRoot(key, values[from]);
+                    return from + 1;
+                }
+
+                page = latch(rootID, true);
+                node = newNode(rootID);
+                node.decode(page.data);
+                if (node.isFull()) {
+                    stats.rootSplits.increment();
+                    BTreeNode newRoot = newNode(allocateBlock());
+                    BufferPool.Page newRootPage = latch(newRoot.blockID, true);
+                    newRoot.addChild(node.blockID);
+                    rootID = newRoot.blockID;
+                    splitRoot(newRoot, 0, node);
+                    unlatch(page, true);
+                    releaseNode(node);
+                    page = newRootPage;
+                    node = newRoot;
+                }
+                rootLatch.writeLock().unlock();
+                holdingRoot = false;
+
+                // keys at or past the key after the leaf's child pointer belong somewhere else
+                boolean bounded = false;
+                long bound = 0;
+                while (true) {
+                    int i = node.findKey(key);
+                    if (i >= 0 && !format.bplus) {
+                        // the key is in a node with room, so a bigger value still fits
+                        node.values[i] = values[from];
+                        writeNode(node);
+                        position[0] = logInsert(key, values[from]);
+                        return from + 1;
+                    }
+                    i = format.bplus ? PageFormat.childFor(i) : -i - 1;
+
+                    if (node.isLeaf()) {
+                        int next = from;
+                        while (next < count && (!bounded || keys[next] < bound) && !node.isFull()) {
+                            int j = node.findKey(keys[next]);
+                            if (j >= 0) {
+                                node.values[j] = values[next];
+                            } else {
+                                node.insertAt(-j - 1, keys[next], values[next]);
+                            }
+                            next++;
+                        }
+                        writeNode(node);
+                        position[0] = logPages(0, node);
+                        return next;
+                    }
+
+                    BufferPool.Page childPage = latch(node.childPointers[i], true);
+                    BTreeNode child = newNode(node.childPointers[i]);
+                    child.decode(childPage.data);
+                    if (child.isFull()) {
+                        splitRoot(node, i, child);
+                        if (key >= node.keys[i]) {
+                            releaseNode(child);
+                            unlatch(childPage, true);
+                            // the key that moved up might be the one being put in, the next round finds it
+                            if (key == node.keys[i] && !format.bplus) continue;
+                            i++;
+                            childPage = latch(node.childPointers[i], true);
+                            child = newNode(node.childPointers[i]);
+                            child.decode(childPage.data);
+                        }
+                    }
+                    if (i < node.numKeys) {
+                        bounded = true;
+                        bound = node.keys[i];
+                    }
+                    unlatch(page, true);
+                    releaseNode(node);
+                    page = childPage;
+                    node = child;
+                }
+            } finally {
+                if (node != null) releaseNode(node);
+                if (page != null) unlatch(page, true);
+                if (holdingRoot) rootLatch.writeLock().unlock();
+            }
+        }
+
+        /**
+         * method that deletes by going down from the root with exclusive latches, making sure each node it goes
+         * into has a key to spare first (borrowing a key from a sibling, or merging with one), so taking
+         * the key out never has to go back up
+         * a packed node can grow when one of its keys is swapped for another, so any that no longer fit are split at the end
+         * the caller holds changeLock exclusively, and every node reached stays latched until the end,
+         * where everything that changed is logged as one record
+         * @param key key to delete
+         * @return log position of the delete (0 with no log), or NOT_FOUND
+         * @throws IOException
+         */
+        private long deleteFromRoot(long key) throws IOException {
+            rootLatch.writeLock().lock();
+            long oldRootID = rootID;
+            Deletion deletion = new Deletion();
+            try {
+                if (rootID == 0) return NOT_FOUND;
+                BTreeNode node = deletion.node(rootID);
+                boolean found = false;
+                // node whose key is replaced by the biggest key before it or the smallest after it, once a leaf is reached
+                BTreeNode holder = null;
+                int holderIndex = 0;
+                boolean takeBiggest = false;
+
+                while (true) {
+                    if (holder != null) {
+                        if (!node.isLeaf()) {
+                            node = deletion.fixChild(node, takeBiggest ? node.numChildren - 1 : 0);
+                            continue;
+                        }
+                        int j = takeBiggest ? node.numKeys - 1 : 0;
+                        holder.keys[holderIndex] = node.keys[j];
+                        holder.values[holderIndex] = node.values[j];
+                        node.removeAt(j);
+                        deletion.changed(holder, node);
+                        found = true;
+                        break;
+                    }
+
+                    int i = node.findKey(key);
+                    if (node.isLeaf()) {
+                        if (i >= 0) {
+                            node.removeAt(i);
+                            deletion.changed(node);
+                            found = true;
+                        }
+                        break;
+                    }
+                    // a B+tree key in a node with children only separates them, the key itself is in a leaf
+                    if (i < 0 || format.bplus) {
+                        node = deletion.fixChild(node, format.bplus ? PageFormat.childFor(i) : -i - 1);
+                        continue;
+                    }
+
+                    // the key is in a node with children, one of the children next to it has to give up a key for it
+                    BTreeNode left = deletion.child(node, i);
+                    BTreeNode right = deletion.child(node, i + 1);
+                    if (left.hasSpare()) {
+                        holder = node;
+                        holderIndex = i;
+                        takeBiggest = true;
+                        node = left;
+                    } else if (right.hasSpare()) {
+                        holder = node;
+                        holderIndex = i;
+                        takeBiggest = false;
+                        node = right;
+                    } else {
+                        // neither can, so the key moves down between them into one node and is deleted from there
+                        deletion.merge(node, i, left, right);
+                        node = left;
+                    }
+                }
+
+                deletion.splitOverflowing();
+
+                long position = 0;
+                if (!deletion.changed.isEmpty()) {
+                    BTreeNode[] changed = deletion.changed.values().toArray(new BTreeNode[0]);
+                    for (BTreeNode changedNode : changed) {
+                        writeNode(changedNode);
+                    }
+                    position = logPages(rootID != oldRootID ? rootID : 0, changed);
+                    // blocks go on the free list after the record that stops anything from pointing at them
+                    for (long blockID : deletion.freed) {
+                        freeBlock(blockID);
+                    }
+                    writeHeader();
+                }
+                return found ? position : NOT_FOUND;
+            } finally {
+                deletion.release();
+                rootLatch.writeLock().unlock();
+            }
+        }
+
+        /**
+         * class for the nodes one deleteFromRoot has latched, changed and freed
+         */
+        private class Deletion {
+            private final Map<Long, BufferPool.Page> pages = new HashMap<>();
+            private final Map<Long, BTreeNode> nodes = new HashMap<>();
+            // node each latched node was reached from, the root has none
+            private final Map<Long, BTreeNode> parents = new HashMap<>();
+            // changed nodes in the order they were reached, freed ones are taken back out
+            final Map<Long, BTreeNode> changed = new LinkedHashMap<>();
+            final List<Long> freed = new ArrayList<>();
+
+            /**
+             * @return the node in a block, latched exclusively the first time it is asked for
+             */
+            BTreeNode node(long blockID) throws IOException {
+                BTreeNode node = nodes.get(blockID);
+                if (node == null) {
+                    BufferPool.Page page = latch(blockID, true);
+                    pages.put(blockID, page);
+                    node = newNode(blockID);
+                    node.decode(page.data);
+                    nodes.put(blockID, node);
+                }
+                return node;
+            }
+
+            /**
+             * @return child i of a node, latched exclusively the first time it is asked for
+             */
+            BTreeNode child(BTreeNode parent, int i) throws IOException {
+                BTreeNode child = node(parent.childPointers[i]);
+                parents.put(child.blockID, parent);
+                return child;
+            }
+
+            void changed(BTreeNode... changedNodes) {
+                for (BTreeNode node : changedNodes) {
+                    changed.put(node.blockID, node);
+                }
+            }
+
+            /**
+             * method that makes sure a child has a key to spare before the delete goes into it
+             * @param parent node the delete is in
+             * @param i index of the child to go into
+             * @return node to go into next, the left sibling if the child was merged into it
+             * @throws IOException
+             */
+            BTreeNode fixChild(BTreeNode parent, int i) throws IOException {
+                BTreeNode child = child(parent, i);
+                if (child.hasSpare()) return child;
+
+                BTreeNode left = i > 0 ? child(parent, i - 1) : null;
+                if (left != null && left.hasSpare() && format.bplus && child.isLeaf()) {
+                    // a B+tree leaf takes its left sibling's last pair, which is the new key between them
+                    child.insertAt(0, left.keys[left.numKeys - 1], left.values[left.numKeys - 1]);
+                    left.numKeys--;
+                    parent.keys[i - 1] = child.keys[0];
+                    changed(parent, left, child);
+                    return child;
+                }
+                if (left != null && left.hasSpare()) {
+                    // the key between them comes down to the child, and the left sibling's last key goes up in its place
+                    child.insertAt(0, parent.keys[i - 1], parent.values[i - 1]);
+                    parent.keys[i - 1] = left.keys[left.numKeys - 1];
+                    parent.values[i - 1] = left.values[left.numKeys - 1];
+                    left.numKeys--;
+                    if (!left.isLeaf()) {
+                        child.insertChild(0, left.childPointers[left.numChildren - 1]);
+                        left.numChildren--;
+                    }
+                    changed(parent, left, child);
+                    return child;
+                }
+
+                BTreeNode right = i + 1 < parent.numChildren ? child(parent, i + 1) : null;
+                if (right != null && right.hasSpare() && format.bplus && child.isLeaf()) {
+                    // same thing from the right sibling, its second key is the new key between them
+                    child.insertAt(child.numKeys, right.keys[0], right.values[0]);
+                    right.removeAt(0);
+                    parent.keys[i] = right.keys[0];
+                    changed(parent, child, right);
+                    return child;
+                }
+                if (right != null && right.hasSpare()) {
+                    // same thing from the right sibling, its first key goes up
+                    child.insertAt(child.numKeys, parent.keys[i], parent.values[i]);
+                    parent.keys[i] = right.keys[0];
+                    parent.values[i] = right.values[0];
+                    right.removeAt(0);
+                    if (!right.isLeaf()) {
+                        child.addChild(right.childPointers[0]);
+                        right.removeChild(0);
+                    }
+                    changed(parent, child, right);
+                    return child;
+                }
+
+                // the siblings have as few keys as they can, so the child fits in one node with either of them
+                if (left != null) {
+                    merge(parent, i - 1, left, child);
+                    return left;
+                }
+                merge(parent, i, child, right);
+                return child;
+            }
+
+            /**
+             * method that moves key i of the parent and everything in the child right of it into the child left of it
+             * (B+tree leaves drop the key between them instead, the left one has every pair already before it)
+             * the right child's block is freed, and so is the parent's if it was the root and has no keys left
+             * @param parent node with both children
+             * @param i index of the key between the children
+             * @param left child at i
+             * @param right child at i + 1
+             */
+            void merge(BTreeNode parent, int i, BTreeNode left, BTreeNode right) {
+                stats.merges.increment();
+                if (format.bplus && left.isLeaf()) {
+                    left.next = right.next;
+                } else {
+                    left.insertAt(left.numKeys, parent.keys[i], parent.values[i]);
+                }
+                System.arraycopy(right.keys, 0, left.keys, left.numKeys, right.numKeys);
+                System.arraycopy(right.values, 0, left.values, left.numKeys, right.numKeys);
+                left.numKeys += right.numKeys;
+                System.arraycopy(right.childPointers, 0, left.childPointers, left.numChildren, right.numChildren);
+                left.numChildren += right.numChildren;
+                parent.removeAt(i);
+                parent.removeChild(i + 1);
+
+                changed(parent, left);
+                changed.remove(right.blockID);
+                freed.add(right.blockID);
+                // the tree gets one level shorter when the root's last key moves down
+                if (parent.blockID == rootID && parent.numKeys == 0) {
+                    rootID = left.blockID;
+                    parents.remove(left.blockID);
+                    changed.remove(parent.blockID);
+                    freed.add(parent.blockID);
+                }
+            }
+
+            /**
+             * method that splits changed nodes that no longer fit in their block into their parent, going up as far as
+             * needed, only packed nodes ever need it
+             * every node changed was reached from its parent, so the whole path up is still latched
+             * @throws IOException
+             */
+            void splitOverflowing() throws IOException {
+                while (true) {
+                    BTreeNode node = null;
+                    for (BTreeNode changedNode : changed.values()) {
+                        if (!changedNode.fits()) {
+                            node = changedNode;
+                            break;
+                        }
+                    }
+                    if (node == null) return;
+
+                    BTreeNode parent = parents.get(node.blockID);
+                    if (parent == null) {
+                        // the root is split under a new one, no one can reach it until the root ID changes
+                        stats.rootSplits.increment();
+                        parent = newNode(allocateBlock());
+                        nodes.put(parent.blockID, parent);
+                        parent.addChild(node.blockID);
+                        parents.put(node.blockID, parent);
+                        rootID = parent.blockID;
+                    }
+                    int i = 0;
+                    while (parent.childPointers[i] != node.blockID) i++;
+                    BTreeNode right = split(parent, i, node);
+                    nodes.put(right.blockID, right);
+                    parents.put(right.blockID, parent);
+                    changed(parent, node, right);
+                }
+            }
+
+            /**
+             * method that lets go of every node the delete latched
+             */
+            void release() {
+                for (BTreeNode node : nodes.values()) {
+                    releaseNode(node);
+                }
+                for (BufferPool.Page page : pages.values()) {
+                    unlatch(page, true);
+                }
+            }
+        }
+
+        /**
+         * method that splits the child node of the parent node we pass in
+         * the caller holds the parent and child latched exclusively, the new right node can't be reached
+         * by anyone else until the parent is written
+         * @param parent instance of node we pass in
+         * @param i refers to child pointer index
+         * @param left the full child at i, it keeps the first half of its keys
+         * @throws IOException
+         */
+        void splitRoot(BTreeNode parent, int i, BTreeNode left) throws IOException {
+            BTreeNode right = split(parent, i, left);
+            writeNode(right);
+            writeNode(left);
+            writeNode(parent);
+
+            // the three nodes go in the log as one record, so a replay never sees half a split
+            logPages(parent, left, right);
+            releaseNode(right);
+        }
+
+        /**
+         * method that moves the second half of a child's keys into a new node, and the middle key up into the parent
+         * (a B+tree leaf keeps its middle key in the new node, only a copy of it goes up)
+         * nothing is written, the caller writes and logs all three nodes
+         * @param parent instance of node we pass in
+         * @param i refers to child pointer index
+         * @param left the full child at i, it keeps the first half of its keys
+         * @return the new right child, from the node pool
+         * @throws IOException
+         */
+        BTreeNode split(BTreeNode parent, int i, BTreeNode left) throws IOException {
+            stats.splits.increment();
+            // create a right child instance of passed node
+            BTreeNode right = newNode(allocateBlock());
+
+            if (format.bplus && left.isLeaf()) {
+                // a B+tree leaf keeps every pair, the right leaf's first key is copied up to separate them
+                int midIndex = left.numKeys / 2;
+                right.numKeys = left.numKeys - midIndex;
+                System.arraycopy(left.keys, midIndex, right.keys, 0, right.numKeys);
+                System.arraycopy(left.values, midIndex, right.values, 0, right.numKeys);
+                left.numKeys = midIndex;
+                // the right leaf goes in between the left one and the one after it
+                right.next = left.next;
+                left.next = right.blockID;
+                parent.insertAt(i, right.keys[0], 0);
+                parent.insertChild(i + 1, right.blockID);
+                return right;
+            }
+
+            // get middle key index from left node
+            int midIndex = left.numKeys / 2;
+            // get mid key and mid value
+            long midKey = left.keys[midIndex];
+            long midValue = left.values[midIndex];
+
+            // copy left node from mid to end into right node
+            int movedKeys = left.numKeys - midIndex - 1;
+            System.arraycopy(left.keys, midIndex + 1, right.keys, 0, movedKeys);
+            System.arraycopy(left.values, midIndex + 1, right.values, 0, movedKeys);
+            right.numKeys = movedKeys;
+
+            // children after mid go with the keys into right node
+            if (!left.isLeaf()) {
+                int movedChildren = left.numChildren - midIndex - 1;
+                System.arraycopy(left.childPointers, midIndex + 1, right.childPointers, 0, movedChildren);
+                right.numChildren = movedChildren;
+                left.numChildren = midIndex + 1;
+            }
+
+            // left child keeps everything before mid
+            left.numKeys = midIndex;
+
+            // write in the new parent info
+            parent.insertAt(i, midKey, midValue);
+            parent.insertChild(i + 1, right.blockID);
+            return right;
+        }
+
+        /**
+         * method to search for key
+         * keys are read straight from the cached block, so nothing is decoded or allocated per node
          * @param key key to search
-         * @return
+         * @return value of the key, or null if it isn't in the tree
+         */
+        Long search(long key) throws IOException {
+            // most missing keys are known to be missing without reading a node
+            if (filter != null && !filter.mightContain(key)) {
+                stats.filterSkips.increment();
+                return null;
+            }
+            BufferPool.Page page;
+            rootLatch.readLock().lock();
+            try {
+                // if tree is empty return null
+                if (rootID == 0) return null;
+                page = latch(rootID, false);
+            } finally {
+                rootLatch.readLock().unlock();
+            }
+
+            // loop through the nodes of the tree
+            while (true) {
+                ByteBuffer block = page.data;
+                // binary search the keys in the current node
+                int i = format.findKey(block, key);
+
+                // if the keys are equal return the value (a B+tree only has values in its leaves)
+                if (i >= 0 && (!format.bplus || format.isLeaf(block))) {
+                    long value = format.valueAt(block, i);
+                    unlatch(page, false);
+                    return value;
+                }
+
+                // if they aren't equal, move down to the child before the first bigger key and search
+                long childID = format.childAt(block, format.bplus ? PageFormat.childFor(i) : -i - 1);
+
+                // if the node does not have children, return null
+                if (childID == 0) {
+                    unlatch(page, false);
+                    return null;
+                }
+                BufferPool.Page child = latch(childID, false);
+                unlatch(page, false);
+                page = child;
+            }
+        }
+
+        /**
+         * interface for getting the result of each key in a batch search
+         */
+        interface LookupResult {
+            /**
+             * @param key key that was looked up
+             * @param found true if the key is in the tree
+             * @param value value of the key, only used if it was found
+             */
+            void accept(long key, boolean found, long value) throws IOException;
+        }
+
+        /**
+         * method that looks up many keys with one walk down the tree
+         * keys that go to the same child share the read of every node above it,
+         * and results are given back in key order as they are found
+         * @param keys keys to look up, sorted with no repeats
+         * @param count number of keys used in the array
+         * @param result where each key's result goes
+         * @throws IOException
+         */
+        void searchBatch(long[] keys, int count, LookupResult result) throws IOException {
+            if (filter != null) {
+                searchFiltered(keys, count, result);
+                return;
+            }
+            // if tree is empty every key is missing
+            if (rootID == 0) {
+                for (int i = 0; i < count; i++) result.accept(keys[i], false, 0);
+                return;
+            }
+            searchBatchRecursive(rootID, keys, 0, count, result);
+        }
+
+        /**
+         * method that only looks up the keys the filter says might be in the tree, and gives the others back
+         * as missing in between the tree's results, so every key still comes back in order
+         * @param keys keys to look up, sorted with no repeats
+         * @param count number of keys used in the array
+         * @param result where each key's result goes
+         * @throws IOException
+         */
+        private void searchFiltered(long[] keys, int count, LookupResult result) throws IOException {
+            long[] maybe = new long[count];
+            int maybeCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (filter.mightContain(keys[i])) maybe[maybeCount++] = keys[i];
+            }
+            stats.filterSkips.add(count - maybeCount);
+
+            // index of the next key of the batch whose result hasn't been given
+            int[] next = {0};
+            LookupResult inOrder = (key, found, value) -> {
+                while (keys[next[0]] != key) result.accept(keys[next[0]++], false, 0);
+                next[0]++;
+                result.accept(key, found, value);
+            };
+            if (rootID == 0) {
+                for (int i = 0; i < maybeCount; i++) inOrder.accept(maybe[i], false, 0);
+            } else if (maybeCount > 0) {
+                searchBatchRecursive(rootID, maybe, 0, maybeCount, inOrder);
+            }
+            while (next[0] < count) result.accept(keys[next[0]++], false, 0);
+        }
+
+        /**
+         * recursive method that looks up keys[from..to), which all belong under one node
+         * @param nodeID node to look in
+         * @param keys sorted keys
+         * @param from first key for this node
+         * @param to one past the last key for this node
+         * @param result where each key's result goes
+         * @throws IOException
+         */
+        void searchBatchRecursive(long nodeID, long[] keys, int from, int to, LookupResult result) throws IOException {
+            BTreeNode node = readNode(nodeID);
+            int i = from;
+            while (i < to) {
+                int position = node.findKey(keys[i]);
+
+                // the key is in this node
+                if (position >= 0 && (!format.bplus || node.isLeaf())) {
+                    result.accept(keys[i], true, node.values[position]);
+                    i++;
+                    continue;
+                }
+
+                // every key before the next key of this node goes down to the same child
+                int child = format.bplus ? PageFormat.childFor(position) : -position - 1;
+                int end = i + 1;
+                if (child < node.numKeys) {
+                    end = Arrays.binarySearch(keys, i + 1, to, node.keys[child]);
+                    if (end < 0) end = -end - 1;
+                } else {
+                    end = to;
+                }
+
+                if (node.isLeaf()) {
+                    // nowhere else to look, so they are all missing
+                    for (int j = i; j < end; j++) result.accept(keys[j], false, 0);
+                } else {
+                    searchBatchRecursive(node.childPointers[child], keys, i, end, result);
+                }
+                i = end;
+            }
+            releaseNode(node);
+        }
+
+        /**
+         * method that writes every pair to a stream, in key order
+         * it extracts the tree as it was when it started, inserts can go on meanwhile
+         * the tree is cut into subtrees that are walked on a fork-join pool, each into its own buffer,
+         * and the buffers are written out in key order as they finish, with a few at a time ahead of the writer
+         * buffers that were written are handed to the next subtrees, so only a few are ever made
+         * @param out where the pairs go
+         * @param threads number of threads walking subtrees
+         * @param format PairEncoder.TEXT or PairEncoder.BINARY
+         * @throws IOException
+         */
+        void extract(OutputStream out, int threads, int format) throws IOException {
+            try (Snapshot snapshot = snapshot()) {
+                // if tree is empty there is nothing to write
+                if (snapshot.rootID == 0) return;
+
+                List<ExtractPiece> pieces = extractPieces(snapshot, threads);
+                ForkJoinPool workers = new ForkJoinPool(threads);
+                try {
+                    // pieces that are being walked, in order, each is written once all before it are
+                    ArrayDeque<ForkJoinTask<PairEncoder>> running = new ArrayDeque<>();
+                    ArrayDeque<PairEncoder> written = new ArrayDeque<>();
+                    int next = 0;
+                    while (next < pieces.size() || !running.isEmpty()) {
+                        while (next < pieces.size() && running.size() < threads * EXTRACT_AHEAD) {
+                            ExtractPiece piece = pieces.get(next++);
+                            PairEncoder encoder = written.isEmpty() ? new PairEncoder(format) : written.poll();
+                            running.add(workers.submit(() -> extractPiece(snapshot, piece, encoder)));
+                        }
+                        try {
+                            PairEncoder encoder = running.poll().join();
+                            encoder.writeTo(out);
+                            written.add(encoder);
+                        } catch (UncheckedIOException e) {
+                            throw e.getCause();
+                        }
+                    }
+                } finally {
+                    workers.shutdownNow();
+                }
+            }
+        }
+
+        /**
+         * one part of an extract, a subtree followed by the key that comes after it in its parent (if it has one)
+         */
+        static class ExtractPiece {
+            final long nodeID;
+            final boolean hasNext;
+            final long nextKey;
+            final long nextValue;
+
+            ExtractPiece(long nodeID, boolean hasNext, long nextKey, long nextValue) {
+                this.nodeID = nodeID;
+                this.hasNext = hasNext;
+                this.nextKey = nextKey;
+                this.nextValue = nextValue;
+            }
+        }
+
+        /**
+         * method that cuts the tree into pieces in key order, going a level down at a time from the root
+         * until there are enough pieces to keep every thread busy and each piece is small enough to buffer
+         * @param snapshot version of the tree being extracted
+         * @param threads number of threads that will walk the pieces
+         * @return pieces in key order
+         * @throws IOException
+         */
+        private List<ExtractPiece> extractPieces(Snapshot snapshot, int threads) throws IOException {
+            // levels below the root, from the left edge of the tree
+            int levelsBelow = 0;
+            BTreeNode node = snapshot.readNode(snapshot.rootID);
+            while (!node.isLeaf()) {
+                long childID = node.childPointers[0];
+                releaseNode(node);
+                node = snapshot.readNode(childID);
+                levelsBelow++;
+            }
+            releaseNode(node);
+
+            List<ExtractPiece> pieces = new ArrayList<>();
+            pieces.add(new ExtractPiece(snapshot.rootID, false, 0, 0));
+            while (levelsBelow > 0) {
+                List<ExtractPiece> lower = new ArrayList<>();
+                long children = 0;
+                for (ExtractPiece piece : pieces) {
+                    node = snapshot.readNode(piece.nodeID);
+                    for (int i = 0; i < node.numChildren; i++) {
+                        // the keys between B+tree subtrees only separate them, their pairs are in the leaves
+                        boolean last = i == node.numKeys;
+                        lower.add(new ExtractPiece(node.childPointers[i], last ? piece.hasNext : !format.bplus,
+                                last ? piece.nextKey : node.keys[i], last ? piece.nextValue : node.values[i]));
+                    }
+                    children += node.numChildren;
+                    releaseNode(node);
+                }
+                // a node has about as many keys as children, so a piece with this many levels below it
+                // has about (children per node) to the power of its levels pairs
+                double pairsPerPiece = Math.pow((double) children / pieces.size(), levelsBelow);
+                pieces = lower;
+                levelsBelow--;
+                if (pieces.size() >= threads * EXTRACT_PIECES_PER_THREAD && pairsPerPiece <= EXTRACT_PIECE_PAIRS) break;
+            }
+            return pieces;
+        }
+
+        /**
+         * method that walks one piece of the tree into a buffer
+         * @param snapshot version of the tree being extracted
+         * @param piece piece to walk
+         * @param encoder empty buffer to put the piece's pairs in
+         * @return the buffer
+         */
+        private PairEncoder extractPiece(Snapshot snapshot, ExtractPiece piece, PairEncoder encoder) {
+            try {
+                // leaves can only be read ahead once their parent is read, so then they aren't reached through the chain
+                if (format.bplus && !pool.readsAhead()) {
+                    extractLeaves(encoder, snapshot, piece.nodeID);
+                } else {
+                    extractRecursive(encoder, snapshot, piece.nodeID);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (piece.hasNext) encoder.add(piece.nextKey, piece.nextValue);
+            return encoder;
+        }
+
+        /**
+         * recursive method to put the keys and values of a node and everything below it in a buffer, in key order
+         * every child is asked to be read ahead before the first one is walked
+         * @param encoder buffer to add the pairs to
+         * @param snapshot version of the tree being extracted
+         * @param nodeID id of node to extract from
+         */
+        void extractRecursive(PairEncoder encoder, Snapshot snapshot, long nodeID) throws IOException {
+            BTreeNode node = snapshot.readNode(nodeID);
+            prefetchChildren(node, 0, node.numChildren);
+
+            // each child's keys come before the key after it (a B+tree's pairs are all in its leaves)
+            for (int i = 0; i < node.numKeys; i++) {
+                if (!node.isLeaf()) extractRecursive(encoder, snapshot, node.childPointers[i]);
+                if (!format.bplus || node.isLeaf()) encoder.add(node.keys[i], node.values[i]);
+            }
+            if (!node.isLeaf()) extractRecursive(encoder, snapshot, node.childPointers[node.numKeys]);
+            releaseNode(node);
+        }
+
+        /**
+         * method to put the pairs of every leaf under a B+tree node in a buffer, in key order
+         * the leaves are read one after the other from the first one under the node to the last one,
+         * so only the nodes on the two edges of the subtree are read on the way down
+         * @param encoder buffer to add the pairs to
+         * @param snapshot version of the tree being extracted
+         * @param nodeID id of node to extract from
+         */
+        void extractLeaves(PairEncoder encoder, Snapshot snapshot, long nodeID) throws IOException {
+            long lastID = edgeLeaf(snapshot, nodeID, true);
+            long leafID = edgeLeaf(snapshot, nodeID, false);
+            while (true) {
+                BTreeNode leaf = snapshot.readNode(leafID);
+                for (int i = 0; i < leaf.numKeys; i++) {
+                    encoder.add(leaf.keys[i], leaf.values[i]);
+                }
+                long next = leaf.next;
+                releaseNode(leaf);
+                if (leafID == lastID) return;
+                leafID = next;
+            }
+        }
+
+        /**
+         * @return block ID of the first (or last) leaf under a node
+         */
+        private long edgeLeaf(Snapshot snapshot, long nodeID, boolean last) throws IOException {
+            while (true) {
+                BTreeNode node = snapshot.readNode(nodeID);
+                boolean leaf = node.isLeaf();
+                long childID = leaf ? 0 : node.childPointers[last ? node.numChildren - 1 : 0];
+                releaseNode(node);
+                if (leaf) return nodeID;
+                nodeID = childID;
+            }
+        }
+
+        /**
+         * method that asks for children of a node to be read ahead, in the order they will be walked
+         * @param node node whose children are walked next
+         * @param from first child to read
+         * @param to one past the last child to read
+         */
+        private void prefetchChildren(BTreeNode node, int from, int to) {
+            if (pool.readsAhead() && from < to) pool.prefetch(node.childPointers, from, to);
+        }
+
+        /**
+         * counts of how the tree is laid out, from shape
+         */
+        static class Shape {
+            int height;
+            long nodes;
+            long leaves;
+            long keys;
+            // keys that have a value, every key in a B-tree but only the ones in leaves in a B+tree
+            long pairs;
+            // bytes the nodes take in their blocks
+            long bytes;
+            long freeBlocks;
+        }
+
+        /**
+         * method that walks the whole tree (as it was when it started) and the free list to see how they are laid out
+         * @return counts of nodes, keys and levels
+         * @throws IOException
+         */
+        Shape shape() throws IOException {
+            Shape shape = new Shape();
+            try (Snapshot snapshot = snapshot()) {
+                if (snapshot.rootID != 0) shapeRecursive(shape, snapshot, snapshot.rootID, 1);
+            }
+            synchronized (this) {
+                // a free block holds the next one's ID first, stop if it ever loops so a damaged list can still be read
+                long blockID = freeListHead;
+                while (blockID != 0 && shape.freeBlocks < nextBlockID) {
+                    BufferPool.Page page = pool.pin(blockID);
+                    blockID = page.data.getLong(0);
+                    pool.unpin(page, false);
+                    shape.freeBlocks++;
+                }
+            }
+            return shape;
+        }
+
+        /**
+         * recursive method that adds a node and everything below it to the counts
+         * @param shape counts so far
+         * @param snapshot version of the tree being walked
+         * @param nodeID node to count
+         * @param depth level of the node, the root is 1
+         */
+        private void shapeRecursive(Shape shape, Snapshot snapshot, long nodeID, int depth) throws IOException {
+            BTreeNode node = snapshot.readNode(nodeID);
+            shape.height = Math.max(shape.height, depth);
+            shape.nodes++;
+            shape.keys += node.numKeys;
+            if (!format.bplus || node.isLeaf()) shape.pairs += node.numKeys;
+            shape.bytes += node.encodedSize();
+            if (node.isLeaf()) shape.leaves++;
+            prefetchChildren(node, 0, node.numChildren);
+            for (int i = 0; i < node.numChildren; i++) {
+                shapeRecursive(shape, snapshot, node.childPointers[i], depth + 1);
+            }
+            releaseNode(node);
+        }
+
+        /**
+         * method that opens a cursor over the pairs with lo <= key <= hi
+         * the cursor reads its own snapshot, so inserts made while it is open aren't seen
+         * @param lo lowest key
+         * @param hi highest key
+         * @return cursor, positioned before the first pair
+         * @throws IOException
+         */
+        Cursor cursor(long lo, long hi) throws IOException {
+            return new Cursor(lo, hi);
+        }
+
+        /**
+         * class that walks the tree in key order between two keys
+         * only the nodes on the path from the root to the current key are kept, along with
+         * the index of the next key to give back in each of them
+         * in a B+tree the path is only the current leaf, the leaf after it is read once it is done
+         */
+        class Cursor implements Closeable {
+            private final Snapshot snapshot;
+            private final long hi;
+            private final List<BTreeNode> path = new ArrayList<>();
+            private int[] nextKey = new int[16];
+            private boolean done;
+
+            // pair the cursor is on after next returns true
+            long key;
+            long value;
+
+            /**
+             * initializes a cursor by going down from the root to the first key that isn't less than lo
+             * @param lo lowest key
+             * @param hi highest key
+             * @throws IOException
+             */
+            Cursor(long lo, long hi) throws IOException {
+                this.snapshot = snapshot();
+                this.hi = hi;
+                long currentID = snapshot.rootID;
+                while (currentID != 0) {
+                    BTreeNode node = snapshot.readNode(currentID);
+                    int i = node.findKey(lo);
+                    if (format.bplus && !node.isLeaf()) {
+                        currentID = node.childPointers[PageFormat.childFor(i)];
+                        releaseNode(node);
+                        continue;
+                    }
+                    if (i >= 0) {
+                        // lo is in this node, everything in the child before it is smaller
+                        push(node, i);
+                        break;
+                    }
+                    // everything from the first bigger key on comes after the child in front of it
+                    i = -i - 1;
+                    push(node, i);
+                    currentID = node.isLeaf() ? 0 : node.childPointers[i];
+                }
+            }
+
+            /**
+             * method that moves to the next pair in the range
+             * @return true if key and value now hold the next pair, false once the range is finished
+             * @throws IOException
+             */
+            boolean next() throws IOException {
+                while (!done && !path.isEmpty()) {
+                    int top = path.size() - 1;
+                    BTreeNode node = path.get(top);
+                    int i = nextKey[top];
+
+                    // every key of this node has been given back, go back up to the parent
+                    // (or on to the next leaf in a B+tree)
+                    if (i >= node.numKeys) {
+                        long nextLeaf = node.next;
+                        releaseNode(path.remove(top));
+                        if (nextLeaf != 0) push(snapshot.readNode(nextLeaf), 0);
+                        continue;
+                    }
+
+                    // keys only get bigger from here, so stop at the first one past hi
+                    if (node.keys[i] > hi) {
+                        break;
+                    }
+                    key = node.keys[i];
+                    value = node.values[i];
+                    nextKey[top] = i + 1;
+
+                    // the keys after this one start at the far left of the next child
+                    if (!node.isLeaf()) {
+                        long childID = node.childPointers[i + 1];
+                        while (childID != 0) {
+                            BTreeNode child = snapshot.readNode(childID);
+                            push(child, 0);
+                            childID = child.isLeaf() ? 0 : child.childPointers[0];
+                        }
+                    }
+                    return true;
+                }
+                close();
+                return false;
+            }
+
+            /**
+             * method that adds a node to the end of the path
+             * @param node node to add
+             * @param i index of the next key to give back from it
+             */
+            private void push(BTreeNode node, int i) {
+                if (path.size() == nextKey.length) {
+                    nextKey = Arrays.copyOf(nextKey, nextKey.length * 2);
+                }
+                nextKey[path.size()] = i;
+                path.add(node);
+                // the children after i are walked next, up to the first one past hi
+                int last = i;
+                while (last < node.numKeys && node.keys[last] <= hi) last++;
+                prefetchChildren(node, i + 1, Math.min(last + 1, node.numChildren));
+            }
+
+            /**
+             * method that gives the nodes on the path back to the node pool and lets go of the snapshot
+             */
+            @Override
+            public void close() {
+                done = true;
+                for (BTreeNode node : path) {
+                    releaseNode(node);
+                }
+                path.clear();
+                snapshot.close();
+            }
+        }
+
+        /**
+         * method that opens a snapshot of the tree as it is now
+         * it waits for inserts that are changing nodes, so it never sees half of one
+         * @return snapshot, must be closed so the old block images it needs can be dropped
+         */
+        Snapshot snapshot() {
+            changeLock.writeLock().lock();
+            try {
+                return new Snapshot(versions.open(), rootID);
+            } finally {
+                changeLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * class for a version of the tree that doesn't change while it is read
+         * blocks changed since it was opened are read from the images PageVersions kept of them
+         */
+        class Snapshot implements Closeable {
+            final long id;
+            final long rootID;
+            private boolean closed;
+
+            Snapshot(long id, long rootID) {
+                this.id = id;
+                this.rootID = rootID;
+            }
+
+            /**
+             * method that reads a node as it was when the snapshot was opened
+             * the live block is latched while looking for an old image, since a writer needs it
+             * exclusively to add one
+             * @param blockID id for node we want to read
+             * @return node from the node pool, should be passed to releaseNode when done
+             * @throws IOException
+             */
+            BTreeNode readNode(long blockID) throws IOException {
+                BufferPool.Page page = latch(blockID, false);
+                try {
+                    BTreeNode node = newNode(blockID);
+                    ByteBuffer image = versions.find(blockID, id);
+                    node.decode(image != null ? image : page.data);
+                    return node;
+                } finally {
+                    unlatch(page, false);
+                }
+            }
+
+            /**
+             * method that lets go of the snapshot, old images only it needed are dropped
+             */
+            @Override
+            public void close() {
+                if (closed) return;
+                closed = true;
+                versions.close(id);
+            }
+        }
+
+        /**
+         * method to read how many keys a node has and return the instance
+         * the node comes from the node pool, so it should be passed to releaseNode when done
+         * @param blockID id for node we want to read
+         * @return returns a node instance
+         * @throws IOException
+         */
+        BTreeNode readNode(long blockID) throws IOException {
+            // get the block from the pool, it is only read from the file if it isn't cached
+            BufferPool.Page page = latch(blockID, false);
+            // get a node instance for the specific block ID
+            BTreeNode specificNode = newNode(blockID);
+            // read the num of keys it has
+            specificNode.decode(page.data);
+            unlatch(page, false);
+            return specificNode;
+        }
+
+        /**
+         * method that pins a block and latches it
+         * @param blockID block to latch
+         * @param exclusive true to change the block, false to only read it
+         * @return latched page, must be passed back to unlatch
+         * @throws IOException
+         */
+        BufferPool.Page latch(long blockID, boolean exclusive) throws IOException {
+            stats.nodesVisited.increment();
+            BufferPool.Page page = pool.pin(blockID);
+            if (exclusive) page.latch.writeLock().lock(); else page.latch.readLock().lock();
+            return page;
+        }
+
+        /**
+         * method that lets go of a latched block
+         * @param page page returned by latch
+         * @param exclusive same as given to latch
+         */
+        void unlatch(BufferPool.Page page, boolean exclusive) {
+            if (exclusive) page.latch.writeLock().unlock(); else page.latch.readLock().unlock();
+            pool.unpin(page, false);
+        }
+
+        /**
+         * method to write a changed node back into its block in the pool
+         * the node's block has to be latched exclusively, unless nothing points to it yet
+         * @param node node to write
+         * @throws IOException
+         */
+        void writeNode(BTreeNode node) throws IOException {
+            stats.nodesWritten.increment();
+            BufferPool.Page page;
+            if (versions.active()) {
+                // an open snapshot might still need the block as it is, so keep an image first
+                page = pool.pin(node.blockID);
+                versions.keep(node.blockID, page.data);
+            } else {
+                // the whole block is overwritten, so it doesn't need to be read first
+                page = pool.pinForWrite(node.blockID);
+            }
+            page.data.clear();
+            node.encode(page.data);
+            pool.unpin(page, true);
+        }
+
+        /**
+         * method that returns an empty node for a block, reusing a released node if there is one
+         * @param blockID id of the node's block
+         * @return empty node
+         */
+        BTreeNode newNode(long blockID) {
+            BTreeNode node = freeNodes.get().poll();
+            if (node == null) {
+                return new BTreeNode(format, blockID);
+            }
+            node.reset(blockID);
+            return node;
+        }
+
+        /**
+         * method that gives a node back to the node pool so later reads can reuse it
+         * @param node node that isn't used anymore
+         */
+        void releaseNode(BTreeNode node) {
+            freeNodes.get().push(node);
+        }
+    }
+
+    /**
+     * class that caches index file blocks in memory so the tree doesn't go to the file for every node
+     * blocks are pinned while in use, changed blocks are marked dirty and only written back when
+     * they are evicted or the pool is flushed, and the least recently used unpinned block is evicted first
+     * pages are found through a hash table on block ID and reused after eviction, so a cache hit allocates nothing
+     * the pool is split into segments by block ID, each with its own lock, lru list and table,
+     * so threads working on different blocks rarely wait on each other
+     * walks of the whole tree can ask for blocks they will pin soon to be read ahead on a few I/O threads,
+     * so the file is read while the blocks before them are being used instead of one block at a time
+     */
+    static class BufferPool {
+        // most segments a pool is split into, and fewest pages a segment should have
+        private static final int MAX_SEGMENTS = 16;
+        private static final int MIN_SEGMENT_PAGES = 64;
+        // most threads reading ahead at once
+        private static final int READ_AHEAD_THREADS = 8;
+
+        /**
+         * one cached block
+         */
+        static class Page {
+            long blockID;
+            // either a heap copy of the block or, for a mapped store, a view of the file itself
+            ByteBuffer data;
+            int pinCount;
+            boolean dirty;
+            // held shared while the block is read and exclusive while it is changed, only while pinned
+            final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+            // neighbours in the lru list, and the next page in the same hash bucket
+            Page older;
+            Page newer;
+            Page nextInBucket;
+        }
+
+        final BlockStore store;
+        private final boolean mapped;
+        private final Segment[] segments;
+        // set while a write-ahead log is kept, changed blocks are then never evicted, only written by a checkpoint
+        volatile boolean noSteal;
+
+        // threads reading blocks ahead, or null if blocks are only read when they are pinned
+        private ExecutorService readAheadThreads;
+        // one permit per block that can be read ahead at once, so a walk never gets too far ahead of itself
+        private Semaphore readAheadWindow;
+        // blocks being read ahead, a pin of one of them waits for that read instead of reading it again
+        private final Map<Long, CountDownLatch> readingAhead = new ConcurrentHashMap<>();
+        private final LongAdder readAheads = new LongAdder();
+
+        /**
+         * initializes an empty pool
+         * @param store where blocks are read from and written to
+         * @param capacity number of blocks to keep in memory
+         */
+        BufferPool(BlockStore store, int capacity) {
+            this.store = store;
+            this.mapped = store.isMapped();
+            // power of two, small pools stay in one segment so the lru order is kept for all of it
+            int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, capacity / MIN_SEGMENT_PAGES)));
+            segments = new Segment[count];
+            for (int i = 0; i < count; i++) {
+                segments[i] = new Segment((capacity + count - 1) / count);
+            }
+        }
+
+        /**
+         * method that pins a block, reading it from the file if it isn't cached
+         * @param blockID block to pin
+         * @return pinned page, must be passed back to unpin
+         * @throws IOException
+         */
+        Page pin(long blockID) throws IOException {
+            CountDownLatch reading = readAheadThreads != null ? readingAhead.get(blockID) : null;
+            if (reading != null) {
+                try {
+                    reading.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for block " + blockID);
+                }
+            }
+            return segment(blockID).pin(blockID, true);
+        }
+
+        /**
+         * method that lets blocks be read ahead, a mapped store's blocks are read by the system so it is never used
+         * @param window most blocks read ahead at once, 0 to only read blocks when they are pinned
+         */
+        void readAhead(int window) {
+            if (window <= 0 || mapped) return;
+            readAheadWindow = new Semaphore(window);
+            readAheadThreads = Executors.newFixedThreadPool(Math.min(window, READ_AHEAD_THREADS), task -> {
+                Thread thread = new Thread(task, "read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /**
+         * @return true if blocks can be read ahead
+         */
+        boolean readsAhead() {
+            return readAheadThreads != null;
+        }
+
+        /**
+         * method that starts reading blocks that will be pinned soon, in order, skipping any that are cached or
+         * already being read, they are split between the read-ahead threads so each thread reads a few in a row
+         * blocks past a full window aren't read ahead, they are read when they are pinned like any other
+         * @param blockIDs blocks to read, in the order they will be pinned
+         * @param from index of the first block
+         * @param to one past the index of the last block
+         */
+        void prefetch(long[] blockIDs, int from, int to) {
+            if (readAheadThreads == null) return;
+            int count = 0;
+            long[] wanted = new long[to - from];
+            long[] writes = new long[to - from];
+            CountDownLatch[] latches = new CountDownLatch[to - from];
+            for (int i = from; i < to && readAheadWindow.tryAcquire(); i++) {
+                Segment segment = segment(blockIDs[i]);
+                CountDownLatch reading = new CountDownLatch(1);
+                synchronized (segment) {
+                    if (segment.find(blockIDs[i]) != null || readingAhead.putIfAbsent(blockIDs[i], reading) != null) {
+                        readAheadWindow.release();
+                        continue;
+                    }
+                    writes[count] = segment.writes;
+                }
+                latches[count] = reading;
+                wanted[count++] = blockIDs[i];
+            }
+
+            int perThread = (count + READ_AHEAD_THREADS - 1) / READ_AHEAD_THREADS;
+            for (int first = 0; first < count; first += perThread) {
+                int last = Math.min(count, first + perThread);
+                int start = first;
+                try {
+                    readAheadThreads.execute(() -> readAhead(wanted, writes, latches, start, last));
+                } catch (RejectedExecutionException e) {
+                    for (int i = first; i < last; i++) doneReadingAhead(wanted[i], latches[i]);
+                }
+            }
+        }
+
+        /**
+         * method a read-ahead thread runs for a run of blocks
+         */
+        private void readAhead(long[] blockIDs, long[] writes, CountDownLatch[] latches, int from, int to) {
+            ByteBuffer data = ByteBuffer.allocate(store.blockSize());
+            for (int i = from; i < to; i++) {
+                try {
+                    segment(blockIDs[i]).readAhead(blockIDs[i], writes[i], data);
+                } catch (IOException e) {
+                    // the block is read again when it is pinned, which reports the error
+                } finally {
+                    doneReadingAhead(blockIDs[i], latches[i]);
+                }
+            }
+        }
+
+        /**
+         * method that lets pins of a block that was being read ahead go on
+         */
+        private void doneReadingAhead(long blockID, CountDownLatch reading) {
+            readingAhead.remove(blockID);
+            reading.countDown();
+            readAheadWindow.release();
+        }
+
+        /**
+         * method that stops reading ahead once the reads already started are done
+         * they aren't interrupted, since that would close the file's channel
+         */
+        void stopReadAhead() {
+            if (readAheadThreads == null) return;
+            readAheadThreads.shutdown();
+            try {
+                readAheadThreads.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * method that pins a block that is about to be completely overwritten, so it is never read
+         * @param blockID block to pin
+         * @return pinned page, must be passed back to unpin
+         * @throws IOException
+         */
+        Page pinForWrite(long blockID) throws IOException {
+            return segment(blockID).pin(blockID, false);
+        }
+
+        /**
+         * method that releases a pinned block
+         * @param page page returned by pin
+         * @param dirty true if the block was changed and has to be written back
+         */
+        void unpin(Page page, boolean dirty) {
+            Segment segment = segment(page.blockID);
+            synchronized (segment) {
+                if (page.pinCount <= 0) {
+                    throw new IllegalStateException("Block " + page.blockID + " is not pinned");
+                }
+                page.pinCount--;
+                if (dirty && !page.dirty) {
+                    page.dirty = true;
+                    segment.dirtyPages++;
+                }
+            }
+        }
+
+        /**
+         * method that writes every dirty block back to the file, in block order
+         * each block is latched shared while it is written, so no thread is halfway through changing it
+         * @throws IOException
+         */
+        void flush() throws IOException {
+            writeAndUnpin(pinDirtyPages());
+        }
+
+        /**
+         * method that pins every dirty page so it stays put until it is written
+         * @return dirty pages in block order
+         */
+        List<Page> pinDirtyPages() {
+            List<Page> dirtyPages = new ArrayList<>();
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    for (Page page = segment.oldest; page != null; page = page.newer) {
+                        if (page.dirty) {
+                            page.pinCount++;
+                            dirtyPages.add(page);
+                        }
+                    }
+                }
+            }
+            dirtyPages.sort((a, b) -> Long.compare(a.blockID, b.blockID));
+            return dirtyPages;
+        }
+
+        /**
+         * method that writes pages back to the file and unpins them
+         * @param dirtyPages pages from pinDirtyPages
+         * @throws IOException
+         */
+        void writeAndUnpin(List<Page> dirtyPages) throws IOException {
+            IOException failure = null;
+            for (Page page : dirtyPages) {
+                page.latch.readLock().lock();
+                try {
+                    if (failure == null) segment(page.blockID).writePage(page);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    page.latch.readLock().unlock();
+                    unpin(page, false);
+                }
+            }
+            if (failure != null) throw failure;
+        }
+
+        // counters for how well the cache is doing, summed over the segments
+
+        long hits() {
+            long total = 0;
+            for (Segment segment : segments) synchronized (segment) { total += segment.hits; }
+            return total;
+        }
+
+        long misses() {
+            long total = 0;
+            for (Segment segment : segments) synchronized (segment) { total += segment.misses; }
+            return total;
+        }
+
+        long evictions() {
+            long total = 0;
+            for (Segment segment : segments) synchronized (segment) { total += segment.evictions; }
+            return total;
+        }
+
+        long writes() {
+            long total = 0;
+            for (Segment segment : segments) synchronized (segment) { total += segment.writes; }
+            return total;
+        }
+
+        long reads() {
+            long total = 0;
+            for (Segment segment : segments) synchronized (segment) { total += segment.reads; }
+            return total;
+        }
+
+        long readAheads() {
+            return readAheads.sum();
+        }
+
+        long readNanos() {
+            long total = 0;
+            for (Segment segment : segments) synchronized (segment) { total += segment.readNanos; }
+            return total;
+        }
+
+        long writeNanos() {
+            long total = 0;
+            for (Segment segment : segments) synchronized (segment) { total += segment.writeNanos; }
+            return total;
+        }
+
+        long dirtyCount() {
+            long total = 0;
+            for (Segment segment : segments) synchronized (segment) { total += segment.dirtyPages; }
+            return total;
+        }
+
+        int capacity() {
+            int total = 0;
+            for (Segment segment : segments) total += segment.capacity;
+            return total;
+        }
+
+        /**
+         * @return segment a block belongs to
+         */
+        private Segment segment(long blockID) {
+            long hash = blockID * 0x9E3779B97F4A7C15L;
+            return segments[(int) (hash >>> 59) & (segments.length - 1)];
+        }
+
+        /**
+         * one part of the pool, every field is guarded by the segment's own lock
+         */
+        private class Segment {
+            private final int capacity;
+            private final Page[] buckets;
+            private int size;
+            private int dirtyPages;
+
+            // least and most recently used pages
+            private Page oldest;
+            private Page newest;
+
+            private long hits;
+            private long misses;
+            private long evictions;
+            private long writes;
+            // blocks copied in from the store, and time spent in the store's read and write
+            // (a mapped store's blocks are read by the system when they are touched, so those aren't counted)
+            private long reads;
+            private long readNanos;
+            private long writeNanos;
+
+            /**
+             * initializes an empty segment
+             * @param capacity number of blocks to keep in memory
+             */
+            Segment(int capacity) {
+                this.capacity = capacity;
+                // power of two with at least two buckets per page
+                this.buckets = new Page[Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1];
+            }
+
+            /**
+             * method that pins a block, adding it to the segment if it isn't cached
+             * @param blockID block to pin
+             * @param read true to read the block from the file, false if it is about to be completely overwritten
+             * @return pinned page
+             * @throws IOException
+             */
+            synchronized Page pin(long blockID, boolean read) throws IOException {
+                Page page = find(blockID);
+                if (page != null) {
+                    if (read) hits++;
+                    moveToNewest(page);
+                } else {
+                    if (read) misses++;
+                    page = newPage(blockID);
+                    // a mapped page already shows the file, otherwise copy the block in
+                    if (read && !mapped) {
+                        long start = System.nanoTime();
+                        store.read(blockID, page.data);
+                        readNanos += System.nanoTime() - start;
+                        reads++;
+                    }
+                }
+                page.pinCount++;
+                return page;
+            }
+
+            /**
+             * method that looks up a cached block
+             * @param blockID block to find
+             * @return page, or null if the block isn't cached
+             */
+            private Page find(long blockID) {
+                Page page = buckets[bucket(blockID)];
+                while (page != null && page.blockID != blockID) {
+                    page = page.nextInBucket;
+                }
+                return page;
+            }
+
+            /**
+             * @return hash bucket of a block
+             */
+            private int bucket(long blockID) {
+                long hash = blockID * 0x9E3779B97F4A7C15L;
+                return (int) (hash >>> 32) & (buckets.length - 1);
+            }
+
+            /**
+             * method that makes room for a block and adds it to the segment
+             * the least recently used page that isn't pinned is written back if needed and reused
+             * @param blockID block to add
+             * @return page for the block, its data still has to be filled in
+             * @throws IOException
+             */
+            private Page newPage(long blockID) throws IOException {
+                Page page = null;
+                if (size >= capacity) {
+                    Page victim = oldest;
+                    while (victim != null && (victim.pinCount > 0 || (victim.dirty && noSteal))) {
+                        victim = victim.newer;
+                    }
+                    // if everything is pinned (or dirty and waiting for a checkpoint)
+                    // the segment goes over capacity until blocks are unpinned
+                    if (victim != null) {
+                        if (victim.dirty) writePage(victim);
+                        remove(victim);
+                        evictions++;
+                        page = victim;
+                    }
+                }
+                if (page == null) {
+                    page = new Page();
+                    if (!mapped) page.data = ByteBuffer.allocate(store.blockSize());
+                }
+                if (mapped) page.data = store.view(blockID);
+
+                // add it to its bucket and as the newest page
+                page.blockID = blockID;
+                page.pinCount = 0;
+                page.dirty = false;
+                int bucket = bucket(blockID);
+                page.nextInBucket = buckets[bucket];
+                buckets[bucket] = page;
+                page.older = newest;
+                page.newer = null;
+                if (newest != null) newest.newer = page; else oldest = page;
+                newest = page;
+                size++;
+                return page;
+            }
+
+            /**
+             * method that takes a page out of its bucket and the lru list
+             * @param page page to remove
+             */
+            private void remove(Page page) {
+                int bucket = bucket(page.blockID);
+                if (buckets[bucket] == page) {
+                    buckets[bucket] = page.nextInBucket;
+                } else {
+                    Page before = buckets[bucket];
+                    while (before.nextInBucket != page) before = before.nextInBucket;
+                    before.nextInBucket = page.nextInBucket;
+                }
+                unlink(page);
+                size--;
+            }
+
+            /**
+             * method that marks a page as the most recently used
+             * @param page page that was used
+             */
+            private void moveToNewest(Page page) {
+                if (page == newest) return;
+                unlink(page);
+                page.older = newest;
+                page.newer = null;
+                newest.newer = page;
+                newest = page;
+            }
+
+            /**
+             * method that takes a page out of the lru list
+             * @param page page to unlink
+             */
+            private void unlink(Page page) {
+                if (page.older != null) page.older.newer = page.newer; else oldest = page.newer;
+                if (page.newer != null) page.newer.older = page.older; else newest = page.older;
+                page.older = null;
+                page.newer = null;
+            }
+
+            /**
+             * method that reads a block without holding the segment's lock and then adds it, unless it was cached
+             * meanwhile, or a block of the segment was written meanwhile, since what was read could then be old
+             * @param blockID block to read
+             * @param writesBefore writes of the segment when the read was asked for
+             * @param data buffer of one block to read into
+             * @throws IOException
+             */
+            void readAhead(long blockID, long writesBefore, ByteBuffer data) throws IOException {
+                long start = System.nanoTime();
+                store.read(blockID, data);
+                long nanos = System.nanoTime() - start;
+                synchronized (this) {
+                    reads++;
+                    readNanos += nanos;
+                    readAheads.increment();
+                    if (writes != writesBefore || find(blockID) != null) return;
+                    Page page = newPage(blockID);
+                    ByteBuffer into = page.data.duplicate();
+                    into.clear();
+                    into.put(data.duplicate());
+                }
+            }
+
+            /**
+             * method that writes one block back to the file
+             * a mapped page was changed in the file directly, so there is nothing to copy
+             * @param page page to write, either unpinned or latched by the caller
+             * @throws IOException
+             */
+            synchronized void writePage(Page page) throws IOException {
+                if (!mapped) {
+                    long start = System.nanoTime();
+                    store.write(page.blockID, page.data);
+                    writeNanos += System.nanoTime() - start;
+                    writes++;
+                }
+                if (page.dirty) {
+                    page.dirty = false;
+                    dirtyPages--;
+                }
+            }
+        }
+    }
+
+    /**
+     * class that keeps old images of blocks for the tree's open snapshots
+     * the first time a block is changed after a snapshot was opened, its image is copied to a side file,
+     * and readers of that snapshot read the copy instead of the changed block
+     * snapshots get increasing ids and each copy is tagged with the newest id when it was made,
+     * so a snapshot's version of a block is its first copy tagged at least the snapshot's id, or the live block
+     * the live tree never moves, so latches, the log and the buffer pool work the same with or without snapshots
+     */
+    static class PageVersions {
+        // where the side file goes, null for the system temp directory
+        File directory;
+
+        private volatile boolean active;
+        private long lastID;
+        private final TreeSet<Long> open = new TreeSet<>();
+        // copies of each block, oldest first, as {tag, slot in the side file}
+        private final Map<Long, List<long[]>> copies = new HashMap<>();
+        private final ArrayDeque<Long> freeSlots = new ArrayDeque<>();
+        private long nextSlot;
+        private File path;
+        private RandomAccessFile file;
+        private final int blockSize;
+
+        /**
+         * initializes an empty set of versions
+         * @param blockSize size of the blocks it copies
+         */
+        PageVersions(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        /**
+         * @return true while a snapshot is open, so writers have to keep images
+         */
+        boolean active() {
+            return active;
+        }
+
+        /**
+         * method that opens a snapshot, nothing may be changing the tree meanwhile
+         * @return id of the snapshot
+         */
+        synchronized long open() {
+            lastID++;
+            open.add(lastID);
+            active = true;
+            return lastID;
+        }
+
+        /**
+         * method that is called before a block is changed, with the block latched exclusively
+         * it copies the block unless it was already copied since the newest snapshot was opened
+         * @param blockID block about to change
+         * @param current block as it is now
+         * @throws IOException
+         */
+        synchronized void keep(long blockID, ByteBuffer current) throws IOException {
+            if (open.isEmpty()) return;
+            List<long[]> list = copies.get(blockID);
+            if (list != null && list.get(list.size() - 1)[0] >= lastID) return;
+
+            if (file == null) {
+                path = File.createTempFile("snapshot", ".pages", directory);
+                path.deleteOnExit();
+                file = new RandomAccessFile(path, "rw");
+            }
+            long slot = freeSlots.isEmpty() ? nextSlot++ : freeSlots.pop();
+            ByteBuffer image = current.duplicate();
+            image.clear();
+            image.limit(blockSize);
+            while (image.hasRemaining()) {
+                file.getChannel().write(image, slot * blockSize + image.position());
+            }
+            if (list == null) {
+                list = new ArrayList<>(2);
+                copies.put(blockID, list);
+            }
+            list.add(new long[] {lastID, slot});
+        }
+
+        /**
+         * method that finds a snapshot's copy of a block
+         * @param blockID block to find
+         * @param id snapshot id
+         * @return image of the block, or null if the live block is the snapshot's version
+         * @throws IOException
+         */
+        synchronized ByteBuffer find(long blockID, long id) throws IOException {
+            List<long[]> list = copies.get(blockID);
+            if (list == null) return null;
+            for (long[] copy : list) {
+                if (copy[0] >= id) {
+                    ByteBuffer image = ByteBuffer.allocate(blockSize);
+                    while (image.hasRemaining()) {
+                        if (file.getChannel().read(image, copy[1] * blockSize + image.position()) < 0) break;
+                    }
+                    image.clear();
+                    return image;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * method that closes a snapshot and drops the copies no open snapshot reads anymore
+         * @param id snapshot id
+         */
+        synchronized void close(long id) {
+            open.remove(id);
+            if (open.isEmpty()) {
+                // nothing is needed anymore, start over with an empty side file next time
+                active = false;
+                copies.clear();
+                freeSlots.clear();
+                nextSlot = 0;
+                if (file != null) {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        // only copies were in it
+                    }
+                    path.delete();
+                    file = null;
+                }
+                return;
+            }
+
+            // a copy is read by the snapshots opened after the copy before it was made, up to its own tag
+            Iterator<List<long[]>> lists = copies.values().iterator();
+            while (lists.hasNext()) {
+                List<long[]> list = lists.next();
+                long previousTag = 0;
+                Iterator<long[]> it = list.iterator();
+                while (it.hasNext()) {
+                    long[] copy = it.next();
+                    Long reader = open.ceiling(previousTag + 1);
+                    if (reader == null || reader > copy[0]) {
+                        freeSlots.push(copy[1]);
+                        it.remove();
+                    }
+                    previousTag = copy[0];
+                }
+                if (list.isEmpty()) lists.remove();
+            }
+        }
+    }
+
+    /**
+     * class for the write-ahead log kept next to the index file (filename.wal)
+     * an insert is finished once its record is on disk, and the index file is only written at checkpoints,
+     * so the index file plus the log always hold every finished insert, even after a crash
+     * records are:
+     * - INSERT (1) key value: a key put into a node that didn't split, replayed with a normal insert
+     * - PAGES (2) root count (blockID image)*: whole nodes after a split, merge or borrow, root is the new root or 0
+     * - CHECKPOINT (3) root next free count (blockID image)*: the header (root, next block ID and free list head)
+     *   and every changed block, logged before a checkpoint writes them
+     * - DELETE (4) key: a key taken out of a leaf that kept enough keys, replayed with a normal delete
+     * - FREE (5) blockID next: a block put at the front of the free list, with the block that was first before it
+     * - ALLOC (6) blockID next: a block taken off the front of the free list, next is the new head of the list
+     * each record is its type, payload length, payload and a crc of all three, so one cut off by a crash is ignored
+     * many inserts share one fsync (group commit): a thread that finds no write going on writes
+     * everything appended so far, and threads whose records are in it just wait for it to finish
+     */
+    static class WriteAheadLog {
+        static final byte INSERT = 1;
+        static final byte PAGES = 2;
+        static final byte CHECKPOINT = 3;
+        static final byte DELETE = 4;
+        static final byte FREE = 5;
+        static final byte ALLOC = 6;
+        // type and length in front of the payload, crc after it
+        private static final int RECORD_HEADER = 1 + 4;
+        private static final int RECORD_TRAILER = 4;
+
+        private final File file;
+        private final int blockSize;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final CRC32 crc = new CRC32();
+
+        // records appended but not written yet, and the buffer the writing thread has
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+        // positions count every byte ever appended, they keep going up when the file is emptied
+        private long appended;
+        private long durable;
+        // position of the first byte in the file
+        private long fileStart;
+        private boolean forcing;
+        private IOException failure;
+
+        // file offset of the last complete checkpoint record, where replay starts
+        private long replayFrom;
+
+        // counters for how well group commit is doing
+        long commits;
+        long forces;
+
+        /**
+         * opens the log, creating it if needed, and drops anything after the last complete record
+         * @param file log file
+         * @param blockSize size of the block images in its records
+         * @throws IOException
+         */
+        WriteAheadLog(File file, int blockSize) throws IOException {
+            this.file = file;
+            this.blockSize = blockSize;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            long[] checkpoint = {0};
+            long end = read(0, (type, payload, offset) -> {
+                if (type == CHECKPOINT) checkpoint[0] = offset;
+            });
+            replayFrom = checkpoint[0];
+            channel.truncate(end);
+            channel.position(end);
+            appended = durable = end;
+        }
+
+        /**
+         * interface for getting each record of the log
+         */
+        interface RecordReader {
+            /**
+             * @param type record type
+             * @param payload record payload, positioned at its start
+             * @param offset file offset of the record
+             */
+            void accept(byte type, ByteBuffer payload, long offset) throws IOException;
+        }
+
+        /**
+         * interface for replaying records
+         */
+        interface Redo {
+            void apply(byte type, ByteBuffer payload) throws IOException;
+        }
+
+        /**
+         * method that gives every record from the last checkpoint on to redo, in the order they were logged
+         * @param redo what to do with each record
+         * @throws IOException
+         */
+        void replay(Redo redo) throws IOException {
+            read(replayFrom, (type, payload, offset) -> redo.apply(type, payload));
+        }
+
+        /**
+         * method that reads the log's records, stopping at the first one that is cut off or damaged
+         * @param from file offset of the first record to give back, earlier ones are only checked
+         * @param reader called with each record
+         * @return file offset just past the last good record
+         * @throws IOException
+         */
+        private long read(long from, RecordReader reader) throws IOException {
+            long offset = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+                while (true) {
+                    int type = in.read();
+                    if (type < 0) break;
+                    int length;
+                    byte[] payload;
+                    int stored;
+                    try {
+                        length = in.readInt();
+                        if (length < 0 || length > raf.length()) break;
+                        payload = new byte[length];
+                        in.readFully(payload);
+                        stored = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    CRC32 check = new CRC32();
+                    check.update(type);
+                    check.update(ByteBuffer.allocate(4).putInt(length).array());
+                    check.update(payload);
+                    if ((int) check.getValue() != stored) break;
+
+                    if (offset >= from) reader.accept((byte) type, ByteBuffer.wrap(payload), offset);
+                    offset += RECORD_HEADER + length + RECORD_TRAILER;
+                }
+            }
+            return offset;
+        }
+
+        /**
+         * method that appends an insert record
+         * @return log position just past the record, to pass to commit
+         */
+        synchronized long appendInsert(long key, long value) {
+            int start = begin(INSERT, 16);
+            buffer.putLong(key);
+            buffer.putLong(value);
+            return end(start);
+        }
+
+        /**
+         * method that appends a delete record
+         * @return log position just past the record, to pass to commit
+         */
+        synchronized long appendDelete(long key) {
+            int start = begin(DELETE, 8);
+            buffer.putLong(key);
+            return end(start);
+        }
+
+        /**
+         * method that appends a block going onto the free list
+         * @param blockID freed block
+         * @param next free block after it
+         * @return log position just past the record, to pass to commit
+         */
+        synchronized long appendFree(long blockID, long next) {
+            int start = begin(FREE, 16);
+            buffer.putLong(blockID);
+            buffer.putLong(next);
+            return end(start);
+        }
+
+        /**
+         * method that appends a block being taken off the free list, logged before the pages that use it
+         * @param blockID block taken
+         * @param next free block that is now first
+         * @return log position just past the record, to pass to commit
+         */
+        synchronized long appendAlloc(long blockID, long next) {
+            int start = begin(ALLOC, 16);
+            buffer.putLong(blockID);
+            buffer.putLong(next);
+            return end(start);
+        }
+
+        /**
+         * method that appends nodes that changed together
+         * @param newRoot root ID if the first node is the root, otherwise 0
+         * @param nodes nodes to log
+         * @return log position just past the record, to pass to commit
+         */
+        synchronized long appendPages(long newRoot, BTreeNode... nodes) {
+            int start = begin(PAGES, 8 + 4 + nodes.length * (8 + blockSize));
+            buffer.putLong(newRoot);
+            buffer.putInt(nodes.length);
+            for (BTreeNode node : nodes) {
+                buffer.putLong(node.blockID);
+                node.encode(buffer);
+            }
+            return end(start);
+        }
+
+        /**
+         * method that appends the images of every changed block for a checkpoint
+         * @param rootID root of the tree
+         * @param nextBlockID next unused block
+         * @param freeListHead first free block
+         * @param pages changed pages, nothing may be changing them
+         * @return log position just past the record, to pass to commit
+         */
+        synchronized long appendCheckpoint(long rootID, long nextBlockID, long freeListHead, List<BufferPool.Page> pages) {
+            int start = begin(CHECKPOINT, 8 + 8 + 8 + 4 + pages.size() * (8 + blockSize));
+            buffer.putLong(rootID);
+            buffer.putLong(nextBlockID);
+            buffer.putLong(freeListHead);
+            buffer.putInt(pages.size());
+            for (BufferPool.Page page : pages) {
+                buffer.putLong(page.blockID);
+                ByteBuffer image = page.data.duplicate();
+                image.clear();
+                image.limit(blockSize);
+                buffer.put(image);
+            }
+            return end(start);
+        }
+
+        /**
+         * method that starts a record, making room for it first
+         * @return buffer position of the record
+         */
+        private int begin(byte type, int length) {
+            int needed = RECORD_HEADER + length + RECORD_TRAILER;
+            if (buffer.remaining() < needed) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+            int start = buffer.position();
+            buffer.put(type);
+            buffer.putInt(length);
+            return start;
+        }
+
+        /**
+         * method that finishes a record with its crc
+         * @return log position just past the record
+         */
+        private long end(int start) {
+            crc.reset();
+            crc.update(buffer.array(), buffer.arrayOffset() + start, buffer.position() - start);
+            buffer.putInt((int) crc.getValue());
+            appended += buffer.position() - start;
+            return appended;
+        }
+
+        /**
+         * method that waits until everything up to a position is on disk
+         * if no other thread is writing, this one writes and forces everything appended so far
+         * @param position position returned by an append
+         * @throws IOException
+         */
+        void commit(long position) throws IOException {
+            ByteBuffer toWrite;
+            long end;
+            synchronized (this) {
+                commits++;
+                while (durable < position && forcing && failure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for the log");
+                    }
+                }
+                if (failure != null) throw new IOException("Write-ahead log failed: " + failure.getMessage(), failure);
+                if (durable >= position) return;
+
+                // swap buffers so other threads keep appending while this one writes
+                forcing = true;
+                toWrite = buffer;
+                buffer = writing;
+                buffer.clear();
+                writing = toWrite;
+                end = appended;
+            }
+
+            IOException error = null;
+            try {
+                toWrite.flip();
+                while (toWrite.hasRemaining()) {
+                    channel.write(toWrite);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                forcing = false;
+                forces++;
+                if (error != null) failure = error; else durable = end;
+                notifyAll();
+            }
+            if (error != null) throw error;
+        }
+
+        /**
+         * @return bytes appended since the log was last emptied
+         */
+        synchronized long size() {
+            return appended - fileStart;
+        }
+
+        /**
+         * method that empties the log once a checkpoint has everything in the index file
+         * nothing may be appended between the checkpoint's commit and this
+         * @throws IOException
+         */
+        synchronized void truncate() throws IOException {
+            channel.truncate(0);
+            channel.position(0);
+            fileStart = appended;
+            replayFrom = 0;
+        }
+
+        /**
+         * method that closes and removes the log, it should be empty
+         * @throws IOException
+         */
+        synchronized void delete() throws IOException {
+            raf.close();
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * class for the Bloom filter kept next to the index file (filename.bloom), a set of bits every key sets a few of,
+     * so a lookup of a key whose bits aren't all set is a miss without reading any of the tree
+     * deleted keys keep their bits, they only make the filter say "maybe" more often until it is rebuilt
+     * the file is a 48-byte header (magic, open flag, hashes per key, bits, keys it was sized for, keys added
+     * and the false positive rate it was sized for) and then the bits, 8 bytes at a time
+     * the open flag is set on disk before the first key is added, and cleared when the filter is saved after the
+     * index is flushed, so a filter left behind by a crash (that could be missing keys) is never trusted
+     */
+    static class BloomFilter {
+        private static final String MAGIC = "4348BLM1";
+        private static final int OPEN_OFFSET = 8;
+        private static final int HEADER_BYTES = 48;
+        // fewest keys a filter is sized for, so one made for a small index doesn't fill up right away
+        static final long MIN_KEYS = 1024;
+
+        private final File file;
+        private final AtomicLongArray words;
+        final long bits;
+        final int hashes;
+        final long capacity;
+        final double fpRate;
+        final LongAdder added = new LongAdder();
+        // true once the filter has keys the file doesn't
+        private volatile boolean unsaved;
+
+        /**
+         * initializes an empty filter, it is only written to the file when it is closed
+         * @param file where the filter is kept
+         * @param capacity number of keys the filter is sized for
+         * @param fpRate chance a missing key gets "maybe" once capacity keys are in the filter
+         */
+        BloomFilter(File file, long capacity, double fpRate) {
+            this(file, optimalBits(capacity, fpRate), optimalHashes(capacity, fpRate), capacity, fpRate);
+            unsaved = true;
+        }
+
+        private BloomFilter(File file, long bits, int hashes, long capacity, double fpRate) {
+            this.file = file;
+            this.bits = bits;
+            this.hashes = hashes;
+            this.capacity = capacity;
+            this.fpRate = fpRate;
+            this.words = new AtomicLongArray((int) (bits / 64));
+        }
+
+        /**
+         * @return bits that give the false positive rate with capacity keys, a whole number of longs
+         */
+        private static long optimalBits(long capacity, double fpRate) {
+            double bits = -capacity * Math.log(fpRate) / (Math.log(2) * Math.log(2));
+            return Math.max(64, ((long) Math.ceil(bits) + 63) / 64 * 64);
+        }
+
+        /**
+         * @return hashes per key that give the fewest false positives with capacity keys
+         */
+        private static int optimalHashes(long capacity, double fpRate) {
+            return (int) Math.max(1, Math.round(optimalBits(capacity, fpRate) / (double) capacity * Math.log(2)));
+        }
+
+        /**
+         * method that reads a filter from its file
+         * @param file where the filter is kept
+         * @return the filter, or null if it was left open by a crash or isn't a filter
+         * @throws IOException
+         */
+        static BloomFilter read(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                while (header.hasRemaining() && channel.read(header) >= 0) { }
+                header.flip();
+                byte[] magic = new byte[MAGIC.length()];
+                if (header.remaining() < HEADER_BYTES) {
+                    System.err.println("Warning: " + file + " isn't a filter, it is not used");
+                    return null;
+                }
+                header.get(magic);
+                if (!MAGIC.equals(new String(magic, "US-ASCII"))) {
+                    System.err.println("Warning: " + file + " isn't a filter, it is not used");
+                    return null;
+                }
+                if (header.getInt(OPEN_OFFSET) != 0) {
+                    System.err.println("Warning: " + file + " wasn't closed, it is not used until rebuild-filter is run");
+                    return null;
+                }
+                BloomFilter filter = new BloomFilter(file, header.getLong(16), header.getInt(12),
+                        header.getLong(24), header.getDouble(40));
+                filter.added.add(header.getLong(32));
+
+                ByteBuffer in = ByteBuffer.allocate(1 << 16);
+                int word = 0;
+                while (word < filter.words.length()) {
+                    if (channel.read(in) < 0) throw new EOFException(file + " is cut short");
+                    in.flip();
+                    while (in.remaining() >= 8) filter.words.set(word++, in.getLong());
+                    in.compact();
+                }
+                return filter;
+            }
+        }
+
+        /**
+         * method that adds a key, the open flag is put on disk first if it isn't already
+         * @param key key to add
+         * @throws IOException
+         */
+        void add(long key) throws IOException {
+            if (!unsaved) markOpen();
+            added.increment();
+            long h1 = mix(key);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+                int w = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old;
+                while (((old = words.get(w)) & mask) == 0 && !words.compareAndSet(w, old, old | mask)) { }
+            }
+        }
+
+        /**
+         * @return false if the key was never added, true if it might have been
+         */
+        boolean mightContain(long key) {
+            long h1 = mix(key);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return chance of a false positive with the keys added so far
+         */
+        double expectedFpRate() {
+            return Math.pow(1 - Math.exp(-hashes * (double) added.sum() / bits), hashes);
+        }
+
+        /**
+         * method that sets the open flag in the file and waits for it to be on disk
+         * @throws IOException
+         */
+        private synchronized void markOpen() throws IOException {
+            if (unsaved) return;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(OPEN_OFFSET);
+                raf.writeInt(1);
+                raf.getFD().sync();
+            }
+            unsaved = true;
+        }
+
+        /**
+         * method that writes the filter to a new file and moves it over the old one, if it has changed
+         * it should only be called once the index has every key that was added
+         * @throws IOException
+         */
+        synchronized void close() throws IOException {
+            if (!unsaved) return;
+            File temp = new File(file.getPath() + ".tmp");
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                raf.setLength(0);
+                FileChannel channel = raf.getChannel();
+                ByteBuffer out = ByteBuffer.allocate(1 << 16);
+                out.put(MAGIC.getBytes("US-ASCII"));
+                out.putInt(0);
+                out.putInt(hashes);
+                out.putLong(bits);
+                out.putLong(capacity);
+                out.putLong(added.sum());
+                out.putDouble(fpRate);
+                for (int w = 0; w < words.length(); w++) {
+                    if (!out.hasRemaining()) {
+                        out.flip();
+                        while (out.hasRemaining()) channel.write(out);
+                        out.clear();
+                    }
+                    out.putLong(words.get(w));
+                }
+                out.flip();
+                while (out.hasRemaining()) channel.write(out);
+                channel.force(true);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            unsaved = false;
+        }
+
+        /**
+         * @return the bits of a key spread over the whole long (the splitmix64 finalizer)
+         */
+        static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * class for an index split into partitions, each a normal index file that owns the keys hashing to it
+     * filename.idx is then a small manifest (magic and the number of partitions) and the partitions are
+     * filename.idx.p0, filename.idx.p1, ..., so a key is only ever in one of them and each can be loaded on its own thread
+     * keys are spread by hash instead of by range, so the partitions stay the same size whatever the keys look like,
+     * and walks in key order merge the pairs of every partition
+     */
+    static class PartitionedIndex implements Closeable {
+        private static final String MAGIC = "4348PRT1";
+        // commands that can't be split between partitions
+        static final Set<String> UNSUPPORTED = new HashSet<>(Arrays.asList("search-batch", "delete-batch", "serve", "compact"));
+        // batches of rows handed to each partition's thread that it hasn't given back yet
+        private static final int BATCHES = 4;
+        // handed to a partition's thread after its last batch
+        private static final CsvReader.Batch END = new CsvReader.Batch();
+
+        final String filename;
+        final int count;
+        private final RandomAccessFile[] files;
+        final BTree[] trees;
+
+        private PartitionedIndex(String filename, int count) {
+            this.filename = filename;
+            this.count = count;
+            this.files = new RandomAccessFile[count];
+            this.trees = new BTree[count];
+        }
+
+        /**
+         * @return true if the file is the manifest of a partitioned index instead of an index
+         */
+        static boolean isManifest(String filename) throws IOException {
+            File file = new File(filename);
+            if (!file.isFile() || file.length() < MAGIC.length()) return false;
+            byte[] magic = new byte[MAGIC.length()];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                in.readFully(magic);
+            }
+            return MAGIC.equals(new String(magic, "US-ASCII"));
+        }
+
+        /**
+         * method that writes the manifest of a partitioned index, the partitions are created separately
+         * @param filename name of manifest
+         * @param count number of partitions
+         * @throws IOException
+         */
+        static void writeManifest(String filename, int count) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(filename))) {
+                out.write(MAGIC.getBytes("US-ASCII"));
+                out.writeInt(count);
+            }
+        }
+
+        /**
+         * @return number of partitions in a manifest
+         */
+        static int readCount(String filename) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) {
+                in.skipBytes(MAGIC.length());
+                int count = in.readInt();
+                if (count < 1) throw new IOException(filename + " has a bad number of partitions " + count);
+                return count;
+            }
+        }
+
+        /**
+         * @return name of a partition's index file
+         */
+        static String partitionFile(String filename, int partition) {
+            return filename + ".p" + partition;
+        }
+
+        /**
+         * @return partition that owns a key, out of count
+         */
+        static int partitionOf(long key, int count) {
+            // offset from the Bloom filter's hash, so a partition's keys still use all of its filter's bits
+            return (int) Long.remainderUnsigned(BloomFilter.mix(key + 0x9e3779b97f4a7c15L), count);
+        }
+
+        /**
+         * @return index file of the partition that owns a key, found without opening any partition
+         */
+        static String fileFor(String filename, long key) throws IOException {
+            return partitionFile(filename, partitionOf(key, readCount(filename)));
+        }
+
+        /**
+         * method that opens every partition of an index, each with its own buffer pool (and log and filter)
+         * @param filename name of manifest
+         * @return open index
+         * @throws IOException
+         */
+        static PartitionedIndex open(String filename) throws IOException {
+            PartitionedIndex index = new PartitionedIndex(filename, readCount(filename));
+            try {
+                for (int i = 0; i < index.count; i++) {
+                    String partition = partitionFile(filename, i);
+                    index.files[i] = new RandomAccessFile(partition, "rw");
+                    index.trees[i] = openTree(partition, index.files[i]);
+                }
+            } catch (IOException e) {
+                index.closeFiles();
+                throw e;
+            }
+            return index;
+        }
+
+        /**
+         * method that adds every pair of a csv file, the rows are handed out to one thread per partition as they
+         * are parsed, and each thread builds its partition bottom-up if it is empty or merges the pairs in if not
+         * @param reader parsed csv rows
+         * @param fillFactor fraction of the keys a node can hold that each built node gets
+         * @throws IOException
+         */
+        void load(CsvReader reader, double fillFactor) throws IOException {
+            File tempDir = new File(filename).getAbsoluteFile().getParentFile();
+            List<BlockingQueue<CsvReader.Batch>> full = new ArrayList<>();
+            List<BlockingQueue<CsvReader.Batch>> free = new ArrayList<>();
+            List<Future<Void>> loaded = new ArrayList<>();
+            ExecutorService workers = Executors.newFixedThreadPool(count);
+            try {
+                CsvReader.Batch[] filling = new CsvReader.Batch[count];
+                for (int i = 0; i < count; i++) {
+                    full.add(new ArrayBlockingQueue<>(BATCHES + 1));
+                    free.add(new ArrayBlockingQueue<>(BATCHES));
+                    for (int b = 0; b < BATCHES; b++) free.get(i).add(new CsvReader.Batch());
+                    int partition = i;
+                    loaded.add(workers.submit(() -> loadPartition(partition, full.get(partition), free.get(partition),
+                            fillFactor, tempDir)));
+                    filling[i] = free.get(i).take();
+                    filling[i].count = 0;
+                }
+
+                // each row goes into its partition's batch, which is handed over once it is full
+                CsvReader.Batch batch;
+                while ((batch = reader.next()) != null) {
+                    for (int i = 0; i < batch.count; i++) {
+                        int partition = partitionOf(batch.keys[i], count);
+                        CsvReader.Batch routed = filling[partition];
+                        routed.keys[routed.count] = batch.keys[i];
+                        routed.values[routed.count] = batch.values[i];
+                        if (++routed.count == CsvReader.BATCH_PAIRS) {
+                            full.get(partition).put(routed);
+                            filling[partition] = free.get(partition).take();
+                            filling[partition].count = 0;
+                        }
+                    }
+                    reader.recycle(batch);
+                }
+                for (int i = 0; i < count; i++) {
+                    full.get(i).put(filling[i]);
+                    full.get(i).put(END);
+                }
+
+                for (Future<Void> partition : loaded) {
+                    try {
+                        partition.get();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                        throw new IOException(e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted loading " + filename);
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+
+        /**
+         * method one partition's thread runs, it sorts the rows it is given and adds them to its partition
+         * batches keep being given back after a failure, so the thread handing them out never waits forever
+         * @return nothing, so it can be submitted as a Callable
+         */
+        private Void loadPartition(int partition, BlockingQueue<CsvReader.Batch> full, BlockingQueue<CsvReader.Batch> free,
+                                   double fillFactor, File tempDir) throws IOException, InterruptedException {
+            BTree tree = trees[partition];
+            BulkLoader loader = new BulkLoader(fillFactor, tempDir);
+            Exception failure = null;
+            CsvReader.Batch batch;
+            while ((batch = full.take()) != END) {
+                try {
+                    if (failure == null) {
+                        for (int i = 0; i < batch.count; i++) loader.add(batch.keys[i], batch.values[i]);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+                free.put(batch);
+            }
+            if (failure instanceof IOException) throw (IOException) failure;
+            if (failure != null) throw (RuntimeException) failure;
+
+            if (tree.rootID == 0) {
+                loader.build(files[partition], tree);
+            } else {
+                loader.sorted(tree::upsert);
+            }
+            // the partitions write their blocks at the same time, instead of one after another when closed
+            tree.flush();
+            return null;
+        }
+
+        /**
+         * method that writes every pair with lo <= key <= hi to a stream, in key order
+         * @param lo lowest key
+         * @param hi highest key
+         * @param out where the pairs go
+         * @param format PairEncoder.TEXT or PairEncoder.BINARY
+         * @throws IOException
+         */
+        void write(long lo, long hi, OutputStream out, int format) throws IOException {
+            PairEncoder encoder = new PairEncoder(format);
+            try (Cursor cursor = new Cursor(lo, hi)) {
+                while (cursor.next()) {
+                    encoder.add(cursor.key, cursor.value);
+                    encoder.writeIfFull(out);
+                }
+            }
+            encoder.writeTo(out);
+        }
+
+        /**
+         * class that walks every partition between two keys at once, giving back their pairs merged in key order
+         */
+        class Cursor implements Closeable {
+            private final List<BTree.Cursor> cursors = new ArrayList<>();
+            // partitions' cursors that have a pair left, the one on the smallest key first
+            private final PriorityQueue<BTree.Cursor> heads = new PriorityQueue<>((a, b) -> Long.compare(a.key, b.key));
+            // cursor the last pair came from, moved on by the next call
+            private BTree.Cursor current;
+
+            // pair the cursor is on after next returns true
+            long key;
+            long value;
+
+            /**
+             * initializes a cursor on each partition
+             * @param lo lowest key
+             * @param hi highest key
+             * @throws IOException
+             */
+            Cursor(long lo, long hi) throws IOException {
+                try {
+                    for (BTree tree : trees) {
+                        BTree.Cursor cursor = tree.cursor(lo, hi);
+                        cursors.add(cursor);
+                        if (cursor.next()) heads.add(cursor);
+                    }
+                } catch (IOException e) {
+                    close();
+                    throw e;
+                }
+            }
+
+            /**
+             * method that moves to the next pair of any partition
+             * @return false once every partition is done
+             * @throws IOException
+             */
+            boolean next() throws IOException {
+                if (current != null && current.next()) heads.add(current);
+                current = heads.poll();
+                if (current == null) return false;
+                key = current.key;
+                value = current.value;
+                return true;
+            }
+
+            @Override
+            public void close() {
+                for (BTree.Cursor cursor : cursors) cursor.close();
+            }
+        }
+
+        /**
+         * method that closes every partition, so each flushes and cleans up like a single index does
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                for (BTree tree : trees) {
+                    if (tree != null) tree.close();
+                }
+            } finally {
+                closeFiles();
+            }
+        }
+
+        private void closeFiles() throws IOException {
+            for (RandomAccessFile file : files) {
+                if (file != null) file.close();
+            }
+        }
+    }
+
+    /**
+     * class that keeps an index open and answers requests, one per line, from stdin or local socket clients
+     * requests are:
+     * - insert key value  -> OK
+     * - delete key        -> OK or NOT FOUND
+     * - search key        -> key,value or NOT FOUND
+     * - range low high    -> one key, value line per pair, then END
+     * - extract file      -> OK once every pair is written to a new csv file
+     * - flush             -> OK once changed blocks are written to the file
+     * - stats             -> latency of each request type, then END
+     * - quit              -> closes this client's connection
+     * - shutdown          -> stops the server
+     */
+    static class IndexServer {
+        private final BTree tree;
+        // the tree latches its own nodes and ranges read snapshots, this only keeps requests out of a closed tree:
+        // every request that uses the tree holds the read lock and checks closed, close holds the write lock
+        private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+        private final Map<String, LatencyHistogram> latency = new LinkedHashMap<>();
+        private volatile boolean running = true;
+        private boolean closed = false;
+        private ServerSocket serverSocket;
+
+        /**
+         * initializes a server for an open tree
+         * @param tree tree to serve
+         */
+        IndexServer(BTree tree) {
+            this.tree = tree;
+            for (String request : new String[] {"insert", "delete", "search", "range"}) {
+                latency.put(request, new LatencyHistogram());
+            }
+        }
+
+        /**
+         * method that accepts clients on a loopback port until a client sends shutdown
+         * each client gets its own thread (a virtual thread when the JVM has them)
+         * @param port port to listen on
+         * @throws IOException
+         */
+        void listen(int port) throws IOException {
+            ExecutorService clients = clientExecutor();
+            try (ServerSocket socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress())) {
+                serverSocket = socket;
+                System.err.println("serving on " + socket.getLocalSocketAddress());
+                while (running) {
+                    Socket client;
+                    try {
+                        client = socket.accept();
+                    } catch (SocketException e) {
+                        // socket was closed by shutdown
+                        break;
+                    }
+                    clients.execute(() -> {
+                        try (Socket connection = client) {
+                            connection.setTcpNoDelay(true);
+                            session(new BufferedReader(new InputStreamReader(connection.getInputStream())),
+                                    new PrintWriter(new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()))));
+                        } catch (IOException e) {
+                            System.err.println("Error: " + e.getMessage());
+                        }
+                    });
+                }
+            } finally {
+                clients.shutdown();
+            }
+        }
+
+        /**
+         * method that makes the executor for client threads
+         * virtual threads are only in newer JVMs, so they are looked up by name and a normal pool is used otherwise
+         * @return executor that runs each client on its own thread
+         */
+        private static ExecutorService clientExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "index-client");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+
+        /**
+         * method that answers requests from one client until it quits or its input ends
+         * @param in where requests come from
+         * @param out where responses go
+         * @throws IOException
+         */
+        void session(BufferedReader in, PrintWriter out) throws IOException {
+            String line;
+            while (running && (line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if (!handle(line, out)) break;
+                out.flush();
+            }
+            out.flush();
+        }
+
+        /**
+         * method that answers one request
+         * @param line request line
+         * @param out where the response goes
+         * @return false if the client is done
+         * @throws IOException
+         */
+        boolean handle(String line, PrintWriter out) throws IOException {
+            String[] parts = line.split("\\s+");
+            String request = parts[0].toLowerCase();
+            long start = System.nanoTime();
+            try {
+                switch (request) {
+                    case "insert":
+                        if (parts.length < 3) {
+                            out.println("Error: insert needs a key and value");
+                            return true;
+                        }
+                        long key = Long.parseLong(parts[1]);
+                        long value = Long.parseLong(parts[2]);
+                        if (!enter(out)) return true;
+                        try {
+                            tree.insert(key, value);
+                        } finally {
+                            closeLock.readLock().unlock();
+                        }
+                        out.println("OK");
+                        break;
+
+                    case "delete":
+                        if (parts.length < 2) {
+                            out.println("Error: delete needs a key");
+                            return true;
+                        }
+                        long deleteKey = Long.parseLong(parts[1]);
+                        boolean deleted;
+                        if (!enter(out)) return true;
+                        try {
+                            deleted = tree.delete(deleteKey);
+                        } finally {
+                            closeLock.readLock().unlock();
+                        }
+                        out.println(deleted ? "OK" : "NOT FOUND");
+                        break;
+
+                    case "search":
+                        if (parts.length < 2) {
+                            out.println("Error: search needs a key");
+                            return true;
+                        }
+                        long searchKey = Long.parseLong(parts[1]);
+                        Long found;
+                        if (!enter(out)) return true;
+                        try {
+                            found = tree.search(searchKey);
+                        } finally {
+                            closeLock.readLock().unlock();
+                        }
+                        out.println(found != null ? searchKey + "," + found : "NOT FOUND");
+                        break;
+
+                    case "range":
+                        if (parts.length < 3) {
+                            out.println("Error: range needs a low and high key");
+                            return true;
+                        }
+                        long lo = Long.parseLong(parts[1]);
+                        long hi = Long.parseLong(parts[2]);
+                        // the cursor reads a snapshot, so inserts go on while the range is sent
+                        if (!enter(out)) return true;
+                        try (BTree.Cursor cursor = tree.cursor(lo, hi)) {
+                            while (cursor.next()) {
+                                out.println(cursor.key + ", " + cursor.value);
+                            }
+                        } finally {
+                            closeLock.readLock().unlock();
+                        }
+                        out.println("END");
+                        break;
+
+                    case "extract":
+                        if (parts.length < 2) {
+                            out.println("Error: extract needs a file name");
+                            return true;
+                        }
+                        if (Files.exists(Paths.get(parts[1]))) {
+                            out.println("Error: File already exists");
+                            return true;
+                        }
+                        if (!enter(out)) return true;
+                        try (OutputStream writer = new FileOutputStream(parts[1])) {
+                            tree.extract(writer, Runtime.getRuntime().availableProcessors(), PairEncoder.TEXT);
+                        } finally {
+                            closeLock.readLock().unlock();
+                        }
+                        out.println("OK");
+                        return true;
+
+                    case "flush":
+                        if (!enter(out)) return true;
+                        try {
+                            tree.flush();
+                        } finally {
+                            closeLock.readLock().unlock();
+                        }
+                        out.println("OK");
+                        return true;
+
+                    case "stats":
+                        if (!enter(out)) return true;
+                        try {
+                            tree.stats.print(out);
+                        } finally {
+                            closeLock.readLock().unlock();
+                        }
+                        printLatency(out);
+                        out.println("END");
+                        return true;
+
+                    case "quit":
+                        return false;
+
+                    case "shutdown":
+                        shutdown();
+                        out.println("OK");
+                        return false;
+
+                    default:
+                        out.println("Error: Unknown command");
+                        return true;
+                }
+            } catch (NumberFormatException e) {
+                out.println("Error: " + e.getMessage());
+                return true;
+            }
+            latency.get(request).record(System.nanoTime() - start);
+            return true;
+        }
+
+        /**
+         * method that takes the read lock for a request that uses the tree
+         * once the server is closed the lock is let go again and the client is told, so nothing reaches a closed tree
+         * @param out where the response goes
+         * @return true if the request can go on, the caller then has to unlock
+         */
+        private boolean enter(PrintWriter out) {
+            closeLock.readLock().lock();
+            if (closed) {
+                closeLock.readLock().unlock();
+                out.println("Error: server is shutting down");
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * method that stops accepting requests
+         * @throws IOException
+         */
+        void shutdown() throws IOException {
+            running = false;
+            if (serverSocket != null) serverSocket.close();
+        }
+
+        /**
+         * method that writes out changed blocks and closes the tree, after this nothing else is written
+         * @throws IOException
+         */
+        void close() throws IOException {
+            closeLock.writeLock().lock();
+            try {
+                if (closed) return;
+                closed = true;
+                tree.close();
+            } finally {
+                closeLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * method that writes out changed blocks if the server is stopped without shutdown (like ctrl-c)
+         */
+        void flushOnExit() {
+            closeLock.writeLock().lock();
+            try {
+                if (closed) return;
+                tree.flush();
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            } finally {
+                closeLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * method that prints the count, p50 and p99 of each request type
+         * @param out where to print
+         */
+        void printLatency(PrintWriter out) {
+            for (Map.Entry<String, LatencyHistogram> entry : latency.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                out.printf("%s: count=%d p50=%.1fus p99=%.1fus max=%.1fus%n", entry.getKey(), histogram.count(),
+                        histogram.percentile(50) / 1000.0, histogram.percentile(99) / 1000.0, histogram.max() / 1000.0);
+            }
+        }
+    }
+
+    /**
+     * what JMX clients see of an open tree's counters, it is public so the platform MBean server can call it
+     */
+    public interface IndexStatsMBean {
+        long getNodesVisited();
+        long getNodesWritten();
+        long getSplits();
+        long getRootSplits();
+        long getMerges();
+        long getHeaderWrites();
+        long getBlocksRead();
+        long getBlocksReadAhead();
+        long getBlocksWritten();
+        long getBytesRead();
+        long getBytesWritten();
+        double getReadMillis();
+        double getWriteMillis();
+        long getCacheHits();
+        long getCacheMisses();
+        long getCacheEvictions();
+        double getCacheHitRatio();
+        long getDirtyBlocks();
+        long getLogCommits();
+        long getLogForces();
+        long getFilterSkips();
+    }
+
+    /**
+     * class that counts what a tree does, so a slow command can be told apart into levels walked, splits and I/O
+     * the tree's own counters are LongAdders since every thread adds to them on its way through the tree,
+     * block reads and writes are counted by the buffer pool that does them (and by the bulk loader, which skips it)
+     */
+    static class IndexStats implements IndexStatsMBean {
+        private final BTree tree;
+        // blocks latched on the way through the tree, header included
+        final LongAdder nodesVisited = new LongAdder();
+        final LongAdder nodesWritten = new LongAdder();
+        final LongAdder splits = new LongAdder();
+        final LongAdder rootSplits = new LongAdder();
+        final LongAdder merges = new LongAdder();
+        final LongAdder headerWrites = new LongAdder();
+        // blocks written straight to the file by the bulk loader
+        final LongAdder directWrites = new LongAdder();
+        final LongAdder directWriteNanos = new LongAdder();
+        // lookups the Bloom filter answered without reading the tree
+        final LongAdder filterSkips = new LongAdder();
+
+        IndexStats(BTree tree) {
+            this.tree = tree;
+        }
+
+        /**
+         * method that prints every counter, one line per part of the tree
+         * @param out where to print
+         */
+        void print(PrintWriter out) {
+            out.printf("cache: %d hits, %d misses, %d evictions, %d blocks written, %.1f%% hit ratio%n",
+                    getCacheHits(), getCacheMisses(), getCacheEvictions(), getBlocksWritten(), getCacheHitRatio() * 100);
+            out.printf("nodes: %d visited, %d written, %d splits (%d of the root), %d merges, %d header writes%n",
+                    getNodesVisited(), getNodesWritten(), getSplits(), getRootSplits(), getMerges(), getHeaderWrites());
+            out.printf("io: %d blocks read (%d ahead, %d bytes, %.1f ms), %d blocks written (%d bytes, %.1f ms)%n",
+                    getBlocksRead(), getBlocksReadAhead(), getBytesRead(), getReadMillis(),
+                    getBlocksWritten(), getBytesWritten(), getWriteMillis());
+            if (tree.wal != null) {
+                out.printf("log: %d commits, %d forces%n", getLogCommits(), getLogForces());
+            }
+            BloomFilter filter = tree.filter;
+            if (filter != null) {
+                out.printf("filter: %d bits, %d hashes, %d keys added, %d lookups skipped, %.2f%% expected false positives%n",
+                        filter.bits, filter.hashes, filter.added.sum(), getFilterSkips(), filter.expectedFpRate() * 100);
+            }
+        }
+
+        public long getNodesVisited() { return nodesVisited.sum(); }
+        public long getNodesWritten() { return nodesWritten.sum(); }
+        public long getSplits() { return splits.sum(); }
+        public long getRootSplits() { return rootSplits.sum(); }
+        public long getMerges() { return merges.sum(); }
+        public long getHeaderWrites() { return headerWrites.sum(); }
+        public long getBlocksRead() { return tree.pool.reads(); }
+        public long getBlocksReadAhead() { return tree.pool.readAheads(); }
+        public long getBlocksWritten() { return tree.pool.writes() + directWrites.sum(); }
+        public long getBytesRead() { return getBlocksRead() * tree.format.blockSize; }
+        public long getBytesWritten() { return getBlocksWritten() * tree.format.blockSize; }
+        public double getReadMillis() { return tree.pool.readNanos() / 1e6; }
+        public double getWriteMillis() { return (tree.pool.writeNanos() + directWriteNanos.sum()) / 1e6; }
+        public long getCacheHits() { return tree.pool.hits(); }
+        public long getCacheMisses() { return tree.pool.misses(); }
+        public long getCacheEvictions() { return tree.pool.evictions(); }
+        public long getDirtyBlocks() { return tree.pool.dirtyCount(); }
+        public long getFilterSkips() { return filterSkips.sum(); }
+
+        public double getCacheHitRatio() {
+            long hits = getCacheHits();
+            long lookups = hits + getCacheMisses();
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        public long getLogCommits() {
+            WriteAheadLog wal = tree.wal;
+            if (wal == null) return 0;
+            synchronized (wal) {
+                return wal.commits;
+            }
+        }
+
+        public long getLogForces() {
+            WriteAheadLog wal = tree.wal;
+            if (wal == null) return 0;
+            synchronized (wal) {
+                return wal.forces;
+            }
+        }
+    }
+
+    /**
+     * class that counts latencies in buckets so percentiles can be found without keeping every sample
+     * each power of two is split into 16 buckets, so a percentile is off by at most about 6%
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 16;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total;
+        private long max;
+
+        /**
+         * adds one sample
+         * @param nanos latency in nanoseconds
+         */
+        synchronized void record(long nanos) {
+            counts[bucket(Math.max(nanos, 0))]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+
+        synchronized long count() {
+            return total;
+        }
+
+        synchronized long max() {
+            return max;
+        }
+
+        /**
+         * @param percent percentile to find, like 50 or 99
+         * @return upper end of the bucket holding that percentile, in nanoseconds
+         */
+        synchronized long percentile(double percent) {
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * percent / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(bucketTop(i), max);
+            }
+            return max;
+        }
+
+        /**
+         * @return bucket for a value, values below 16 get a bucket each
+         */
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int power = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (power - 4)) & (SUB_BUCKETS - 1);
+            return (power - 3) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return biggest value that goes in a bucket
+         */
+        private static long bucketTop(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int power = bucket / SUB_BUCKETS + 3;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (power - 4)) - 1;
+        }
+    }
+
+    /**
+     * class that reads key,value rows of a csv file on its own thread and hands them over in batches of primitive arrays
+     * the file is read through a direct buffer and the numbers are parsed from its bytes, so nothing is allocated per row
+     * a row is two whole numbers separated by a comma, with spaces or tabs around them and anything after a second comma
+     * ignored, blank lines are skipped and any other row is reported with its line number and skipped
+     */
+    static class CsvReader implements Closeable {
+        static final int BATCH_PAIRS = 1 << 14;
+        private static final int BUFFER_BYTES = 1 << 20;
+        // batches handed over but not given back yet, the parser waits once they are all out
+        private static final int BATCHES = 4;
+        // malformed rows are printed up to this many, after that only counted
+        private static final int MAX_REPORTED = 20;
+
+        /**
+         * rows parsed together, keys[i] and values[i] for i below count
+         */
+        static class Batch {
+            final long[] keys = new long[BATCH_PAIRS];
+            final long[] values = new long[BATCH_PAIRS];
+            int count;
+        }
+
+        // handed over after the last batch
+        private static final Batch END = new Batch();
+
+        private final Path path;
+        private final BlockingQueue<Batch> full = new ArrayBlockingQueue<>(BATCHES + 1);
+        private final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(BATCHES);
+        private final Thread parser;
+        private volatile IOException failure;
+        private volatile long malformed;
+        private boolean ended;
+
+        // used only by the parser thread: what parseLong found and where it stopped, and the last row parseRow accepted
+        private long number;
+        private int position;
+        private long rowKey;
+        private long rowValue;
+
+        /**
+         * opens a csv file and starts parsing it
+         * @param path csv file
+         */
+        CsvReader(Path path) {
+            this.path = path;
+            for (int i = 0; i < BATCHES; i++) free.add(new Batch());
+            parser = new Thread(this::parse, "csv-parser");
+            parser.setDaemon(true);
+            parser.start();
+        }
+
+        /**
+         * method that waits for the next batch of rows
+         * @return batch, to be given back with recycle once its rows are used, or null after the last row
+         * @throws IOException if the file couldn't be read
+         */
+        Batch next() throws IOException {
+            if (ended) return null;
+            Batch batch;
+            try {
+                batch = full.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading " + path);
+            }
+            if (batch == END) {
+                ended = true;
+                if (failure != null) throw failure;
+                return null;
+            }
+            return batch;
+        }
+
+        /**
+         * @param batch batch from next that isn't used anymore
+         */
+        void recycle(Batch batch) {
+            free.add(batch);
+        }
+
+        /**
+         * @return number of rows skipped so far because they weren't key,value
+         */
+        long malformed() {
+            return malformed;
+        }
+
+        /**
+         * stops the parser if the rows weren't all read
+         */
+        @Override
+        public void close() {
+            parser.interrupt();
+            try {
+                parser.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * method the parser thread runs, it fills batches from the file until the end or until it is stopped
+         */
+        private void parse() {
+            try (FileChannel channel = FileChannel.open(path)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+                Batch batch = free.take();
+                batch.count = 0;
+                long line = 0;
+                // set while throwing away the rest of a line too long for the buffer
+                boolean skipping = false;
+                boolean atEnd = false;
+                while (!atEnd) {
+                    while (buffer.hasRemaining() && !atEnd) {
+                        atEnd = channel.read(buffer) < 0;
+                    }
+                    int limit = buffer.position();
+                    int start = 0;
+                    while (start < limit) {
+                        int newline = start;
+                        while (newline < limit && buffer.get(newline) != '\n') newline++;
+                        if (newline == limit && !atEnd) break;
+                        if (skipping) {
+                            skipping = false;
+                        } else {
+                            line++;
+                            String problem = parseRow(buffer, start, newline);
+                            if (problem == null) {
+                                batch.keys[batch.count] = rowKey;
+                                batch.values[batch.count] = rowValue;
+                                if (++batch.count == BATCH_PAIRS) {
+                                    full.put(batch);
+                                    batch = free.take();
+                                    batch.count = 0;
+                                }
+                            } else if (!problem.isEmpty()) {
+                                report(line, problem);
+                            }
+                        }
+                        start = newline + 1;
+                    }
+
+                    // keep the part of a line that isn't all read yet
+                    if (start == 0 && limit == BUFFER_BYTES) {
+                        // none of the buffer had a line end, so the line can't be kept
+                        if (!skipping) report(++line, "row is longer than " + BUFFER_BYTES + " bytes");
+                        skipping = true;
+                        buffer.clear();
+                    } else {
+                        buffer.limit(limit);
+                        buffer.position(Math.min(start, limit));
+                        buffer.compact();
+                    }
+                }
+                if (batch.count > 0) full.put(batch);
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                // stopped by close
+                return;
+            }
+            try {
+                full.put(END);
+            } catch (InterruptedException e) {
+                // stopped by close, nobody is waiting
+            }
+        }
+
+        /**
+         * method that parses one row of the buffer
+         * @param buffer bytes of the file
+         * @param from first byte of the row
+         * @param to byte after the row (its line end)
+         * @return null if it is key,value (in rowKey and rowValue), "" if it is blank, otherwise what is wrong with it
+         */
+        private String parseRow(ByteBuffer buffer, int from, int to) {
+            // a line ending in \r\n ends at the \r
+            if (to > from && buffer.get(to - 1) == '\r') to--;
+            position = skipSpaces(buffer, from, to);
+            if (position == to) return "";
+
+            String problem = parseLong(buffer, to, "key");
+            if (problem != null) return problem;
+            rowKey = number;
+            position = skipSpaces(buffer, position, to);
+            if (position == to) return "row has no value";
+            if (buffer.get(position) != ',') return "key is not a number";
+            position = skipSpaces(buffer, position + 1, to);
+
+            problem = parseLong(buffer, to, "value");
+            if (problem != null) return problem;
+            position = skipSpaces(buffer, position, to);
+            if (position < to && buffer.get(position) != ',') return "value is not a number";
+            rowValue = number;
+            return null;
+        }
+
+        /**
+         * method that parses a whole number starting at position into number, leaving position after its last digit
+         * the digits are added up negative like Long.parseLong does, so Long.MIN_VALUE can be read too
+         * @param buffer bytes of the file
+         * @param to end of the row
+         * @param what "key" or "value", for the problem
+         * @return null if it is a number, otherwise what is wrong with it
+         */
+        private String parseLong(ByteBuffer buffer, int to, String what) {
+            int i = position;
+            boolean negative = false;
+            if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negative = buffer.get(i) == '-';
+                i++;
+            }
+            long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            long result = 0;
+            int digitsStart = i;
+            while (i < to) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) break;
+                if (result < limit / 10 || result * 10 < limit + digit) {
+                    return what + " is out of range";
+                }
+                result = result * 10 - digit;
+                i++;
+            }
+            if (i == digitsStart) return what + " is not a number";
+            number = negative ? result : -result;
+            position = i;
+            return null;
+        }
+
+        /**
+         * @return first byte at or after from that isn't a space or tab
+         */
+        private static int skipSpaces(ByteBuffer buffer, int from, int to) {
+            while (from < to && (buffer.get(from) == ' ' || buffer.get(from) == '\t')) from++;
+            return from;
+        }
+
+        /**
+         * method that prints a skipped row, or counts it once enough have been printed
+         * @param line line number, the first line is 1
+         * @param problem what is wrong with it
+         */
+        private void report(long line, String problem) {
+            if (malformed < MAX_REPORTED) {
+                System.err.println("Warning: line " + line + " of " + path + ": " + problem + ", row skipped");
+            }
+            malformed++;
+        }
+    }
+
+    /**
+     * class that formats pairs straight into a reusable byte array, so no strings are made per pair
+     * and the output is written in big chunks
+     * - TEXT is "key, value" lines, the same as print always wrote
+     * - BINARY is 16 bytes a pair, the key and then the value as little-endian longs, for programs reading the output
+     */
+    static class PairEncoder {
+        static final int TEXT = 0;
+        static final int BINARY = 1;
+        // writeIfFull writes the buffer out once it holds this much
+        static final int CHUNK_BYTES = 1 << 16;
+        // longest a long can be written, with its sign
+        private static final int LONG_CHARS = 20;
+        private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+        final int format;
+        private byte[] bytes = new byte[CHUNK_BYTES + 2 * LONG_CHARS + 3];
+        private int size;
+
+        /**
+         * initializes an empty encoder
+         * @param format TEXT or BINARY
+         */
+        PairEncoder(int format) {
+            this.format = format;
+        }
+
+        /**
+         * adds one pair
+         * @param key key to add
+         * @param value value to add
+         */
+        void add(long key, long value) {
+            if (size + 2 * LONG_CHARS + 3 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            if (format == BINARY) {
+                putLittleEndian(key);
+                putLittleEndian(value);
+                return;
+            }
+            putLong(key);
+            bytes[size++] = ',';
+            bytes[size++] = ' ';
+            putLong(value);
+            bytes[size++] = '\n';
+        }
+
+        /**
+         * writes a long in decimal, last digit first
+         * @param n number to write
+         */
+        private void putLong(long n) {
+            if (n == Long.MIN_VALUE) {
+                System.arraycopy(MIN_LONG, 0, bytes, size, MIN_LONG.length);
+                size += MIN_LONG.length;
+                return;
+            }
+            if (n < 0) {
+                bytes[size++] = '-';
+                n = -n;
+            }
+            int digits = 1;
+            for (long limit = 10; digits < 19 && n >= limit; limit *= 10) digits++;
+            int end = size + digits;
+            for (int i = end - 1; i >= size; i--) {
+                bytes[i] = (byte) ('0' + n % 10);
+                n /= 10;
+            }
+            size = end;
+        }
+
+        /**
+         * writes a long as 8 bytes, lowest byte first
+         * @param n number to write
+         */
+        private void putLittleEndian(long n) {
+            for (int i = 0; i < 8; i++) {
+                bytes[size++] = (byte) (n >>> (8 * i));
+            }
+        }
+
+        /**
+         * method that writes everything added so far and empties the buffer so it can be reused
+         * @param out where to write
+         * @throws IOException
+         */
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+            size = 0;
+        }
+
+        /**
+         * method that writes the buffer out if it holds at least a chunk, so it stays small while adding many pairs
+         * @param out where to write
+         * @throws IOException
+         */
+        void writeIfFull(OutputStream out) throws IOException {
+            if (size >= CHUNK_BYTES) writeTo(out);
+        }
+    }
+
+    /**
+     * interface for where the buffer pool gets its blocks from
+     */
+    interface BlockStore {
+        /**
+         * reads a whole block into a buffer, blocks past the end of the file are read as zeros
+         * @param blockID block to read
+         * @param dst buffer with room for one block
+         * @throws IOException
+         */
+        void read(long blockID, ByteBuffer dst) throws IOException;
+
+        /**
+         * writes a whole block
+         * @param blockID block to write
+         * @param src buffer holding the block
+         * @throws IOException
+         */
+        void write(long blockID, ByteBuffer src) throws IOException;
+
+        /**
+         * @return true if view gives buffers backed by the file itself, so reads and writes need no copy
+         */
+        boolean isMapped();
+
+        /**
+         * returns a buffer that reads and writes the block in the file directly
+         * only supported when isMapped is true
+         * @param blockID block to view
+         * @return buffer of exactly one block
+         * @throws IOException
+         */
+        ByteBuffer view(long blockID) throws IOException;
+
+        /**
+         * @return size of each block in bytes
+         */
+        int blockSize();
+
+        /**
+         * forces every write so far to disk
+         * @throws IOException
+         */
+        void sync() throws IOException;
+
+        /**
+         * called once the tree is done with the file
+         * @param usedBlocks number of blocks the tree uses (its next block ID)
+         * @throws IOException
+         */
+        void close(long usedBlocks) throws IOException;
+    }
+
+    /**
+     * block store that reads and writes the index file at each block's offset
+     * reads and writes give their offset instead of seeking, so threads can use the store at the same time
+     */
+    static class FileBlockStore implements BlockStore {
+        private final FileChannel channel;
+        private final int blockSize;
+
+        FileBlockStore(RandomAccessFile file, int blockSize) {
+            this.channel = file.getChannel();
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public void read(long blockID, ByteBuffer dst) throws IOException {
+            long offset = blockID * blockSize;
+            ByteBuffer into = dst.duplicate();
+            into.clear();
+            into.limit(blockSize);
+            while (into.hasRemaining()) {
+                // blocks past the end of the file are zeros
+                if (channel.read(into, offset + into.position()) < 0) {
+                    while (into.hasRemaining()) into.put((byte) 0);
+                }
+            }
+        }
+
+        @Override
+        public void write(long blockID, ByteBuffer src) throws IOException {
+            long offset = blockID * blockSize;
+            ByteBuffer from = src.duplicate();
+            from.clear();
+            from.limit(blockSize);
+            while (from.hasRemaining()) {
+                channel.write(from, offset + from.position());
+            }
+        }
+
+        @Override
+        public boolean isMapped() {
+            return false;
+        }
+
+        @Override
+        public ByteBuffer view(long blockID) {
+            throw new UnsupportedOperationException("File store can't view blocks");
+        }
+
+        @Override
+        public int blockSize() {
+            return blockSize;
+        }
+
+        @Override
+        public void sync() throws IOException {
+            channel.force(false);
+        }
+
+        @Override
+        public void close(long usedBlocks) {
+            // nothing to clean up, the file is closed by whoever opened it
+        }
+    }
+
+    /**
+     * block store that memory maps the index file in fixed size regions
+     * blocks are handed out as views of the mapping, so nodes are read and written without copying
+     * regions are mapped as they are needed, and a region past the end of the file grows the file
+     * views are handed out under the store's lock, since mapping a region changes which regions are known
+     */
+    static class MappedBlockStore implements BlockStore {
+        // number of blocks in each mapped region, so blocks never cross regions
+        private static final int REGION_BLOCKS = 8192;
+
+        private final FileChannel channel;
+        private final int blockSize;
+        private final long regionSize;
+        private MappedByteBuffer[] regions = new MappedByteBuffer[16];
+
+        MappedBlockStore(FileChannel channel, int blockSize) {
+            this.channel = channel;
+            this.blockSize = blockSize;
+            this.regionSize = (long) REGION_BLOCKS * blockSize;
+        }
+
+        @Override
+        public void read(long blockID, ByteBuffer dst) throws IOException {
+            ByteBuffer block = view(blockID);
+            dst.clear();
+            dst.put(block);
+            dst.clear();
+        }
+
+        @Override
+        public void write(long blockID, ByteBuffer src) throws IOException {
+            ByteBuffer block = view(blockID);
+            ByteBuffer from = src.duplicate();
+            from.clear();
+            from.limit(blockSize);
+            block.put(from);
+        }
+
+        @Override
+        public boolean isMapped() {
+            return true;
+        }
+
+        @Override
+        public synchronized ByteBuffer view(long blockID) throws IOException {
+            long offset = blockID * blockSize;
+            int index = (int) (offset / regionSize);
+            int within = (int) (offset % regionSize);
+
+            // map the region if it hasn't been mapped yet, or was mapped before the file grew this far
+            if (index >= regions.length) {
+                regions = Arrays.copyOf(regions, Math.max(regions.length * 2, index + 1));
+            }
+            MappedByteBuffer region = regions[index];
+            if (region == null || region.capacity() < within + blockSize) {
+                region = mapRegion(index, offset + blockSize);
+                regions[index] = region;
+            }
+
+            ByteBuffer block = region.duplicate();
+            block.position(within);
+            block.limit(within + blockSize);
+            return block.slice();
+        }
+
+        /**
+         * method that maps one region of the file
+         * regions inside the file are only mapped up to its end, so reading never makes the file bigger
+         * @param index region number
+         * @param needed file offset the region has to reach
+         * @return mapped region
+         * @throws IOException
+         */
+        private MappedByteBuffer mapRegion(int index, long needed) throws IOException {
+            long start = index * regionSize;
+            long size = channel.size();
+            long length = needed <= size ? Math.min(regionSize, size - start) : regionSize;
+            return channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+        }
+
+        @Override
+        public int blockSize() {
+            return blockSize;
+        }
+
+        @Override
+        public synchronized void sync() throws IOException {
+            for (MappedByteBuffer region : regions) {
+                if (region != null) region.force();
+            }
+        }
+
+        @Override
+        public synchronized void close(long usedBlocks) throws IOException {
+            // mapping a whole region past the end of the file grew it, so cut it back to the blocks in use
+            long used = Math.max(usedBlocks, 1) * blockSize;
+            Arrays.fill(regions, null);
+            if (channel.size() > used) {
+                try {
+                    channel.truncate(used);
+                } catch (IOException e) {
+                    // some systems don't allow truncating a mapped file, the extra blocks are just zeros
+                }
+            }
+        }
+    }
+
+    /**
+     * class that builds a tree bottom-up from unsorted key value pairs, used by load on an empty index
+     * pairs are collected into sorted runs (spilled to temp files when there are too many to hold),
+     * merged into one sorted stream, and then every node is written once, in order, at the end of the file
+     */
+    static class BulkLoader {
+        // number of pairs held in memory before a sorted run is spilled to disk
+        private static final int RUN_SIZE = 1 << 20;
+        // bytes of blocks collected before they are written out together
+        private static final int WRITE_BYTES = 128 * 1024;
+        // pairs handed over at a time by sorted once the runs were spilled
+        private static final int SORTED_BATCH = 1 << 16;
+
+        private final double fillFactor;
+        // most keys each built leaf and node with children gets, from the fill factor and the tree's node size
+        private int leafKeys;
+        private int innerKeys;
+        private final File tempDir;
+
+        // what the sorted pairs look like, so packed nodes can be given as many keys as are sure to fit
+        private long firstKey;
+        private long lastKey;
+        private long biggestGap;
+        private int valueBytes;
+
+        // pairs of the current run, in the order they were read
+        private long[] keys = new long[1024];
+        private long[] values = new long[1024];
+        private int count = 0;
+
+        // sorted runs already spilled to disk
+        private final List<File> runs = new ArrayList<>();
+
+        // sorted, de-duplicated stream the tree is built from, and the file of merged runs it reads if they were spilled
+        // (or the tree being copied, which is in order already)
+        private DataInputStream sortedInput;
+        private File mergedRuns;
+        private BTree.Cursor sourceCursor;
+        private int sortedIndex;
+        private long currentKey;
+        private long currentValue;
+
+        // nodes built so far on each level (level 0 is the leaves) and how many keys they get
+        private long[] nodesBuilt;
+        private long[] levelNodes;
+        private long[] levelKeys;
+        private BTreeNode[] levelNode;
+        // B+tree only: whether the child being built on the level below is the last of its node on each level,
+        // and the first key under the node built last
+        private boolean[] lastChild;
+        private long builtFirstKey;
+
+        // blocks waiting to be written to the index file, and the block ID of the first one
+        private RandomAccessFile outputFile;
+        private ByteBuffer writeBuffer;
+        private long writeStartID;
+        // tree being built, new blocks come from it
+        private BTree tree;
+
+        /**
+         * initializes a loader
+         * @param fillFactor fraction of the keys a node can hold that each built node gets
+         * @param tempDir directory to spill sorted runs into
+         */
+        BulkLoader(double fillFactor, File tempDir) {
+            this.fillFactor = fillFactor;
+            this.tempDir = tempDir;
+        }
+
+        /**
+         * adds a key value pair, if the same key is added twice the last value wins (same as insert)
+         * @param key key to add
+         * @param value value to add
+         * @throws IOException
+         */
+        void add(long key, long value) throws IOException {
+            // grow the arrays until the run is full, then spill it
+            if (count == keys.length) {
+                if (count >= RUN_SIZE) {
+                    spillRun();
+                } else {
+                    keys = Arrays.copyOf(keys, count * 2);
+                    values = Arrays.copyOf(values, count * 2);
+                }
+            }
+            keys[count] = key;
+            values[count] = value;
+            count++;
+        }
+
+        /**
+         * method that sorts the current run and writes it to a temp file
+         * @throws IOException
+         */
+        private void spillRun() throws IOException {
+            int distinct = sortRun();
+            File run = File.createTempFile("btree-run", ".tmp", tempDir);
+            run.deleteOnExit();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+                for (int i = 0; i < distinct; i++) {
+                    out.writeLong(keys[i]);
+                    out.writeLong(values[i]);
+                }
+            }
+            runs.add(run);
+            count = 0;
+        }
+
+        /**
+         * method that sorts the current run by key and removes duplicate keys, keeping the last value
+         * @return number of distinct pairs left at the front of the arrays
+         */
+        private int sortRun() {
+            // merge sort is stable, so equal keys stay in the order they were read
+            long[] tempKeys = new long[count];
+            long[] tempValues = new long[count];
+            mergeSort(keys, values, tempKeys, tempValues, 0, count);
+
+            // keep the last value for each key
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                if (distinct > 0 && keys[distinct - 1] == keys[i]) {
+                    values[distinct - 1] = values[i];
+                } else {
+                    keys[distinct] = keys[i];
+                    values[distinct] = values[i];
+                    distinct++;
+                }
+            }
+            return distinct;
+        }
+
+        /**
+         * stable merge sort of the pairs in [from, to) by key
+         */
+        private static void mergeSort(long[] keys, long[] values, long[] tempKeys, long[] tempValues, int from, int to) {
+            // insertion sort small ranges
+            if (to - from <= 32) {
+                for (int i = from + 1; i < to; i++) {
+                    long key = keys[i];
+                    long value = values[i];
+                    int j = i - 1;
+                    while (j >= from && keys[j] > key) {
+                        keys[j + 1] = keys[j];
+                        values[j + 1] = values[j];
+                        j--;
+                    }
+                    keys[j + 1] = key;
+                    values[j + 1] = value;
+                }
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            mergeSort(keys, values, tempKeys, tempValues, from, mid);
+            mergeSort(keys, values, tempKeys, tempValues, mid, to);
+            // halves are already in order
+            if (keys[mid - 1] <= keys[mid]) return;
+
+            // merge both halves into the temp arrays, then copy back
+            int left = from, right = mid, out = from;
+            while (left < mid && right < to) {
+                if (keys[right] < keys[left]) {
+                    tempKeys[out] = keys[right];
+                    tempValues[out++] = values[right++];
+                } else {
+                    tempKeys[out] = keys[left];
+                    tempValues[out++] = values[left++];
+                }
+            }
+            while (left < mid) {
+                tempKeys[out] = keys[left];
+                tempValues[out++] = values[left++];
+            }
+            while (right < to) {
+                tempKeys[out] = keys[right];
+                tempValues[out++] = values[right++];
+            }
+            System.arraycopy(tempKeys, from, keys, from, to - from);
+            System.arraycopy(tempValues, from, values, from, to - from);
+        }
+
+        /**
+         * class that reads back one sorted run during the merge
+         */
+        private static class RunReader {
+            final DataInputStream in;
+            // runs read later win when keys are equal
+            final int order;
+            long remaining;
+            long key;
+            long value;
+
+            RunReader(File run, int order) throws IOException {
+                this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+                this.order = order;
+                this.remaining = run.length() / 16;
+            }
+
+            /**
+             * reads the next pair of the run
+             * @return false once the run is used up
+             */
+            boolean next() throws IOException {
+                if (remaining == 0) return false;
+                key = in.readLong();
+                value = in.readLong();
+                remaining--;
+                return true;
+            }
+        }
+
+        /**
+         * method that merges all spilled runs into one sorted temp file with no duplicate keys
+         * @param total used to return the number of pairs in the merged file
+         * @return merged file
+         * @throws IOException
+         */
+        private File mergeRuns(long[] total) throws IOException {
+            PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size(), (a, b) -> {
+                int compare = Long.compare(a.key, b.key);
+                return compare != 0 ? compare : Integer.compare(a.order, b.order);
+            });
+            List<RunReader> readers = new ArrayList<>();
+            File merged = File.createTempFile("btree-merged", ".tmp", tempDir);
+            merged.deleteOnExit();
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 1 << 16))) {
+                for (int i = 0; i < runs.size(); i++) {
+                    RunReader reader = new RunReader(runs.get(i), i);
+                    readers.add(reader);
+                    if (reader.next()) queue.add(reader);
+                }
+
+                // hold back one pair so a later run with the same key can replace its value
+                boolean pending = false;
+                long pendingKey = 0, pendingValue = 0;
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    if (pending && reader.key == pendingKey) {
+                        pendingValue = reader.value;
+                    } else {
+                        if (pending) {
+                            out.writeLong(pendingKey);
+                            out.writeLong(pendingValue);
+                            notePair(total[0]++, pendingKey, pendingValue);
+                        }
+                        pending = true;
+                        pendingKey = reader.key;
+                        pendingValue = reader.value;
+                    }
+                    if (reader.next()) queue.add(reader);
+                }
+                if (pending) {
+                    out.writeLong(pendingKey);
+                    out.writeLong(pendingValue);
+                    notePair(total[0]++, pendingKey, pendingValue);
+                }
+            } finally {
+                for (RunReader reader : readers) reader.in.close();
+                for (File run : runs) run.delete();
+            }
+            return merged;
+        }
+
+        /**
+         * method that sorts everything added and writes the tree into the (empty) index file
+         * @param file instance of index file
+         * @param tree tree whose header gets the new root
+         * @throws IOException
+         */
+        void build(RandomAccessFile file, BTree tree) throws IOException {
+            long total = openSorted();
+            try {
+                buildTree(total, file, tree);
+            } finally {
+                closeSorted();
+            }
+        }
+
+        /**
+         * method that writes a tree into the (empty) index file with every pair of another tree
+         * the pairs already come in order, so nothing is sorted or kept in memory: the source is walked once
+         * to count the pairs (and see how big they get, for packed nodes) and once more to build from
+         * @param source tree to copy, it shouldn't change while it is copied
+         * @param file instance of index file
+         * @param tree tree whose header gets the new root
+         * @throws IOException
+         */
+        void copy(BTree source, RandomAccessFile file, BTree tree) throws IOException {
+            long total = 0;
+            try (BTree.Cursor cursor = source.cursor(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                while (cursor.next()) notePair(total++, cursor.key, cursor.value);
+            }
+            try (BTree.Cursor cursor = source.cursor(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                sourceCursor = cursor;
+                buildTree(total, file, tree);
+            } finally {
+                sourceCursor = null;
+            }
+        }
+
+        /**
+         * method that builds the tree from the sorted stream of pairs
+         * @param total number of pairs in the stream
+         * @param file instance of index file
+         * @param tree tree whose header gets the new root
+         * @throws IOException
+         */
+        private void buildTree(long total, RandomAccessFile file, BTree tree) throws IOException {
+            if (total == 0) return;
+            this.tree = tree;
+            planNodeKeys(total);
+            planLevels(total);
+
+            // build the tree from the root down, nodes are written as soon as they are complete
+            outputFile = file;
+            int blockSize = tree.format.blockSize;
+            writeBuffer = ByteBuffer.allocate(Math.max(1, WRITE_BYTES / blockSize) * blockSize);
+            writeStartID = tree.nextBlockID;
+            long root = buildNode(levelNodes.length - 1);
+            flushBlocks();
+
+            // write the changed header back to file
+            tree.rootID = root;
+            tree.writeHeader();
+        }
+
+        /**
+         * interface for getting sorted pairs a batch at a time
+         */
+        interface SortedBatch {
+            /**
+             * @param keys distinct keys in order
+             * @param values value of each key
+             * @param count number of pairs in the batch
+             */
+            void accept(long[] keys, long[] values, int count) throws IOException;
+        }
+
+        /**
+         * method that sorts the pairs added so far and hands them over in key order instead of building a tree,
+         * for adding them to a tree that already has keys
+         * @param batch what to do with each batch of pairs, later batches only have bigger keys
+         * @throws IOException
+         */
+        void sorted(SortedBatch batch) throws IOException {
+            long total = openSorted();
+            try {
+                if (sortedInput == null) {
+                    // everything fit in memory, so it is one batch
+                    if (total > 0) batch.accept(keys, values, (int) total);
+                    return;
+                }
+                long[] batchKeys = new long[SORTED_BATCH];
+                long[] batchValues = new long[SORTED_BATCH];
+                int batchCount = 0;
+                for (long i = 0; i < total; i++) {
+                    nextSorted();
+                    batchKeys[batchCount] = currentKey;
+                    batchValues[batchCount] = currentValue;
+                    if (++batchCount == SORTED_BATCH) {
+                        batch.accept(batchKeys, batchValues, batchCount);
+                        batchCount = 0;
+                    }
+                }
+                if (batchCount > 0) batch.accept(batchKeys, batchValues, batchCount);
+            } finally {
+                closeSorted();
+            }
+        }
+
+        /**
+         * method that sorts the pairs added so far and gets them ready to be read in order with nextSorted
+         * @return number of distinct pairs
+         * @throws IOException
          */
-        static Long search(RandomAccessFile indexFile, long key) throws IOException {
-            // if tree is empty return null
-            if (rootID == 0) return null;
+        private long openSorted() throws IOException {
+            if (runs.isEmpty()) {
+                // everything fit in memory, read straight from the arrays
+                long total = sortRun();
+                for (int i = 0; i < total; i++) {
+                    notePair(i, keys[i], values[i]);
+                }
+                return total;
+            }
+            // spill what is left and merge all runs into one stream
+            spillRun();
+            long[] mergedTotal = new long[1];
+            mergedRuns = mergeRuns(mergedTotal);
+            sortedInput = new DataInputStream(new BufferedInputStream(new FileInputStream(mergedRuns), 1 << 16));
+            return mergedTotal[0];
+        }
 
-            // store the current rootID
-            long currentID = rootID;
+        /**
+         * method that closes and removes the merged runs once they were read
+         * @throws IOException
+         */
+        private void closeSorted() throws IOException {
+            if (sortedInput != null) sortedInput.close();
+            if (mergedRuns != null) mergedRuns.delete();
+        }
 
-            // loop through the nodes of the tree
-            while (true) {
-                BTreeNode node = readNode(indexFile, currentID);
-                int i = 0;
+        /**
+         * method that keeps track of the biggest key distance and value seen, pairs come in key order
+         * @param index position of the pair in the sorted stream
+         * @param key key of the pair
+         * @param value value of the pair
+         */
+        private void notePair(long index, long key, long value) {
+            if (index == 0) {
+                firstKey = key;
+            } else {
+                // the distance can be more than a long holds, it is compared the way varints store it
+                if (Long.compareUnsigned(key - lastKey, biggestGap) > 0) biggestGap = key - lastKey;
+            }
+            lastKey = key;
+            valueBytes = Math.max(valueBytes, PageFormat.varintSize(PageFormat.zigzag(value)));
+        }
 
-                // loop through each key in the current node until given key is less than current key
-                while (i < node.keys.size() && key > node.keys.get(i)) {
-                    i++;
+        /**
+         * method that works out the most keys a built leaf and node with children gets
+         * fixed nodes get the fill factor of the keys they can hold, packed nodes get the fill factor of their block
+         * (less the room kept for inserts) divided by the most bytes a key, value and child of these pairs can take
+         * @param total number of distinct pairs
+         */
+        private void planNodeKeys(long total) {
+            PageFormat format = tree.format;
+            if (!format.packed) {
+                leafKeys = (int) Math.max(1, Math.min(format.maxDegree, Math.round(fillFactor * format.maxDegree)));
+                innerKeys = leafKeys;
+                return;
+            }
+            // the first key of each node is stored whole, and a node with children has one more child than keys
+            double room = (format.blockSize - 2 * PageFormat.PACKED_ENTRY_BYTES) * fillFactor - PageFormat.PACKED_KEYS_OFFSET - 10;
+            int childBytes = PageFormat.varintSize(tree.nextBlockID + total);
+            // keys in a leaf are next to each other in the sorted pairs, keys in a node above can be anywhere
+            // (a B+tree leaf also points to the next leaf, and its nodes with children have no values)
+            int leafEntry = PageFormat.varintSize(biggestGap) + valueBytes;
+            int innerEntry = PageFormat.varintSize(lastKey - firstKey) + (format.bplus ? 0 : valueBytes) + childBytes;
+            leafKeys = (int) Math.max(1, Math.min(format.maxDegree, (room - (format.bplus ? childBytes : 0)) / leafEntry));
+            innerKeys = (int) Math.max(1, Math.min(format.maxDegree, (room - childBytes) / innerEntry));
+        }
+
+        /**
+         * method that works out how many nodes and keys each level gets
+         * each level is split into as few nodes as the fill factor allows, and the pairs in between
+         * those nodes are passed up to the level above as its keys, until one node (the root) is left
+         * (B+tree leaves keep every pair, and each node above gets a key for every child but its first)
+         * @param total number of distinct pairs
+         */
+        private void planLevels(long total) {
+            List<long[]> levels = new ArrayList<>();
+            if (tree.format.bplus) {
+                long nodes = (total + leafKeys - 1) / leafKeys;
+                levels.add(new long[] {nodes, total});
+                while (nodes > 1) {
+                    // nodes needed so each one has at most innerKeys + 1 children
+                    long children = nodes;
+                    nodes = (children + innerKeys) / (innerKeys + 1);
+                    levels.add(new long[] {nodes, children - nodes});
                 }
+            } else {
+                long pairs = total;
+                while (true) {
+                    // nodes needed so each one has at most fillKeys keys
+                    int fillKeys = levels.isEmpty() ? leafKeys : innerKeys;
+                    long nodes = (pairs + 1 + fillKeys) / (fillKeys + 1);
+                    // every pair that isn't a separator between two nodes is a key on this level
+                    levels.add(new long[] {nodes, pairs - (nodes - 1)});
+                    if (nodes == 1) break;
+                    pairs = nodes - 1;
+                }
+            }
+
+            levelNodes = new long[levels.size()];
+            levelKeys = new long[levels.size()];
+            nodesBuilt = new long[levels.size()];
+            levelNode = new BTreeNode[levels.size()];
+            lastChild = new boolean[levels.size()];
+            for (int i = 0; i < levels.size(); i++) {
+                levelNode[i] = new BTreeNode(tree.format, 0);
+                levelNodes[i] = levels.get(i)[0];
+                levelKeys[i] = levels.get(i)[1];
+            }
+        }
+
+        /**
+         * recursive method that builds the next node on a level, along with all of its children
+         * pairs are taken from the sorted stream in order, so children are finished before their parent
+         * @param level level of the node, 0 is a leaf
+         * @return block ID the node was written to
+         * @throws IOException
+         */
+        private long buildNode(int level) throws IOException {
+            // spread the keys evenly, the first few nodes on a level get one extra
+            long index = nodesBuilt[level]++;
+            long numKeys = levelKeys[level] / levelNodes[level] + (index < levelKeys[level] % levelNodes[level] ? 1 : 0);
 
-                // if the keys are equal return the value
-                if (i < node.keys.size() && key == node.keys.get(i)) {
-                    return node.values.get(i);
+            // each level reuses one node, children are finished before it is filled in
+            BTreeNode node = levelNode[level];
+            node.reset(0);
+            if (tree.format.bplus) {
+                buildLinkedNode(level, node, numKeys);
+            } else {
+                for (int i = 0; i <= numKeys; i++) {
+                    // child before each key, and one after the last key
+                    if (level > 0) {
+                        node.addChild(buildNode(level - 1));
+                    }
+                    if (i < numKeys) {
+                        addSorted(node);
+                    }
                 }
+            }
 
-                // if the node does not have children, return null
-                if (node.childPointers.isEmpty()) return null;
+            // the node is complete, give it the next block
+            node.blockID = tree.appendBlock();
+            tree.stats.nodesWritten.increment();
+            node.encode(writeBuffer);
+            if (!writeBuffer.hasRemaining()) {
+                flushBlocks();
+            }
+            return node.blockID;
+        }
+
+        /**
+         * method that fills in a B+tree node, a leaf gets the next pairs and a node with children gets the
+         * first key under each of its children but the first
+         * a leaf has to point to the next leaf before it is written, which is built right after the nodes
+         * above it that this leaf is the last child of, since nodes get blocks in the order they are finished
+         * @param level level of the node, 0 is a leaf
+         * @param node empty node to fill in
+         * @param numKeys number of keys the node gets
+         * @throws IOException
+         */
+        private void buildLinkedNode(int level, BTreeNode node, long numKeys) throws IOException {
+            if (level > 0) {
+                long firstKey = 0;
+                for (int i = 0; i <= numKeys; i++) {
+                    lastChild[level] = i == numKeys;
+                    node.addChild(buildNode(level - 1));
+                    if (i == 0) {
+                        firstKey = builtFirstKey;
+                    } else {
+                        node.insert(builtFirstKey, 0);
+                    }
+                }
+                builtFirstKey = firstKey;
+                return;
+            }
 
-                // if they aren't equal and have a child, move down to child and search
-                currentID = node.childPointers.get(i);
+            for (int i = 0; i < numKeys; i++) {
+                addSorted(node);
             }
+            builtFirstKey = node.keys[0];
+            int above = 1;
+            while (above < levelNodes.length && lastChild[above]) above++;
+            // the last leaf is the last child of every node above it, all the way up to the root
+            node.next = above == levelNodes.length ? 0 : tree.nextBlockID + above;
         }
 
         /**
-         * helper method to call the recursive print method
-         * @param indexFile instance of index file
+         * method that puts the next pair of the sorted stream in a node, and its key in the tree's filter
+         * @param node node being built
+         * @throws IOException
          */
-        void print(RandomAccessFile indexFile) throws IOException {
-            // if tree is empty return null
-            if (rootID == 0) return;
+        private void addSorted(BTreeNode node) throws IOException {
+            nextSorted();
+            node.insert(currentKey, currentValue);
+            if (tree.filter != null) tree.filter.add(currentKey);
+        }
 
-            // if tree is not empty call printRecursive
-            printRecursive(indexFile, rootID);
+        /**
+         * method that writes the collected blocks to the index file in one write
+         * @throws IOException
+         */
+        private void flushBlocks() throws IOException {
+            if (writeBuffer.position() == 0) return;
+            long start = System.nanoTime();
+            outputFile.seek(writeStartID * tree.format.blockSize);
+            outputFile.write(writeBuffer.array(), 0, writeBuffer.position());
+            // these blocks skip the pool, so the tree counts them itself
+            tree.stats.directWriteNanos.add(System.nanoTime() - start);
+            tree.stats.directWrites.add(writeBuffer.position() / tree.format.blockSize);
+            writeStartID += writeBuffer.position() / tree.format.blockSize;
+            writeBuffer.clear();
         }
 
         /**
-         * recursive method to print out keys and values of current node
-         * @param file instance of index file
-         * @param currentNodeID current node to loop through
+         * method that moves to the next pair of the sorted stream
+         * @throws IOException
+         */
+        private void nextSorted() throws IOException {
+            if (sourceCursor != null) {
+                if (!sourceCursor.next()) throw new EOFException("Tree being copied lost pairs while it was copied");
+                currentKey = sourceCursor.key;
+                currentValue = sourceCursor.value;
+            } else if (sortedInput != null) {
+                currentKey = sortedInput.readLong();
+                currentValue = sortedInput.readLong();
+            } else {
+                currentKey = keys[sortedIndex];
+                currentValue = values[sortedIndex];
+                sortedIndex++;
+            }
+        }
+    }
+
+    /**
+     * class for the page size and node layout of an index file, kept in its header after the free list head:
+     * format version at offset 32, page size at 36, most keys per node at 40, node encoding at 44 and tree layout
+     * at 48 (4 bytes each)
+     * files from before the version was there have zeros in its place, and are read as 512-byte fixed pages of 19 keys,
+     * and version 2 files are from before the layout was there, they are all B-trees
+     * - fixed nodes are 24 bytes of ids and key count, then maxDegree keys, maxDegree values and maxDegree + 1
+     *   child pointers of 8 bytes each, so a page holds the biggest odd number of keys that fits
+     * - packed nodes are a 7 byte header (key count, leaf flag, where the values and children start), the first key,
+     *   then each key as its distance from the one before, the values, and the children, all as varints;
+     *   how many keys fit depends on the keys, so a packed node is full once another key might not fit
+     * - in a B+tree only leaves have values, and nodes with children only have keys that separate them, so more fit;
+     *   each leaf points to the next one in key order where the parent ID is in a fixed node (and in place of the
+     *   children in a packed one), and fixed nodes have an 8 byte leaf flag after the key count
+     */
+    static class PageFormat {
+        // version written by create, files without one are version 1
+        static final int VERSION = 3;
+        // node encodings
+        static final int FIXED = 0;
+        static final int PACKED = 1;
+        // tree layouts
+        static final int BTREE = 0;
+        static final int BPLUS = 1;
+        // smallest and biggest page create accepts
+        static final int MIN_BLOCK_SIZE = 512;
+        static final int MAX_BLOCK_SIZE = 64 * 1024;
+        // byte offsets of each field inside the header block
+        private static final int VERSION_OFFSET = 32;
+        private static final int BLOCK_SIZE_OFFSET = 36;
+        private static final int DEGREE_OFFSET = 40;
+        private static final int ENCODING_OFFSET = 44;
+        private static final int LAYOUT_OFFSET = 48;
+        private static final int HEADER_BYTES = 52;
+
+        // byte offsets of the leaf flag and first key of a fixed B+tree node
+        static final int LEAF_FLAG_OFFSET = 24;
+        static final int BPLUS_KEYS_OFFSET = 32;
+
+        // byte offsets of each field of a packed node
+        static final int PACKED_VALUES_OFFSET = 3;
+        static final int PACKED_CHILDREN_OFFSET = 5;
+        static final int PACKED_KEYS_OFFSET = 7;
+        // most bytes one key, value and child pointer can take packed
+        static final int PACKED_ENTRY_BYTES = 30;
+
+        final int version;
+        final int blockSize;
+        final int maxDegree;
+        final int childPointers;
+        final boolean packed;
+        // true if only leaves have values and each leaf points to the next one
+        final boolean bplus;
+        // fewest keys a fixed node other than the root can have, a split leaves two nodes with this many
+        final int minKeys;
+        // byte offsets of the keys, values and child pointers inside a fixed block, they depend on how many keys fit
+        // (a B+tree leaf has values where a node with children has child pointers)
+        final int keysOffset;
+        final int valuesOffset;
+        final int childrenOffset;
+
+        /**
+         * initializes a format
+         * @param version format version
+         * @param blockSize size of each block in bytes
+         * @param maxDegree most keys a node can have
+         * @param encoding FIXED or PACKED
+         * @param layout BTREE or BPLUS
+         */
+        PageFormat(int version, int blockSize, int maxDegree, int encoding, int layout) {
+            this.version = version;
+            this.blockSize = blockSize;
+            this.maxDegree = maxDegree;
+            this.childPointers = maxDegree + 1;
+            this.packed = encoding == PACKED;
+            this.bplus = layout == BPLUS;
+            this.minKeys = maxDegree / 2;
+            this.keysOffset = bplus ? BPLUS_KEYS_OFFSET : BTreeNode.KEYS_OFFSET;
+            this.valuesOffset = keysOffset + maxDegree * 8;
+            this.childrenOffset = bplus ? valuesOffset : valuesOffset + maxDegree * 8;
+        }
+
+        /**
+         * @param blockSize page size of the new file
+         * @param encoding FIXED or PACKED
+         * @param layout BTREE or BPLUS
+         * @return format for a new file
          */
-        void printRecursive(RandomAccessFile file, long currentNodeID) throws IOException{
-            BTreeNode node = readNode(file, currentNodeID);
+        static PageFormat forBlockSize(int blockSize, int encoding, int layout) {
+            // a B+tree node has a key and either a value or a child for each key, a B-tree node has all three
+            int entries = layout == BPLUS ? 2 : 3;
+            int maxDegree;
+            if (encoding == PACKED) {
+                // as many keys as could fit if every key, value and child took one byte
+                maxDegree = (blockSize - PACKED_KEYS_OFFSET - 1) / entries;
+            } else if (layout == BPLUS) {
+                maxDegree = (blockSize - BPLUS_KEYS_OFFSET - 8) / (entries * 8);
+            } else {
+                maxDegree = (blockSize - BTreeNode.KEYS_OFFSET - 8) / (entries * 8);
+            }
+            if (maxDegree % 2 == 0) maxDegree--;
+            return new PageFormat(VERSION, blockSize, maxDegree, encoding, layout);
+        }
+
+        /**
+         * @return true if create can make a file with this page size
+         */
+        static boolean isValidBlockSize(int blockSize) {
+            return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE && Integer.bitCount(blockSize) == 1;
+        }
 
-            // loop through the keys of the node and print each one out
-            for ( int i = 0; i < node.keys.size(); i++) {
-                System.out.println(node.keys.get(i) + ", " + node.values.get(i));
+        /**
+         * method that reads the format from the start of an index file, before its page size is known
+         * @param file index file
+         * @return format of the file
+         * @throws IOException
+         */
+        static PageFormat read(RandomAccessFile file) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining()) {
+                if (file.getChannel().read(header, header.position()) < 0) break;
             }
+            return read(header);
+        }
 
-            // loop through the children of current node and recurse back to print their keys/values
-            for (long childID : node.childPointers) {
-                printRecursive(file, childID);
+        /**
+         * method that reads the format from a header block
+         * @param header buffer holding the header, read from position 0
+         * @return format of the file
+         * @throws IOException if the header has a version or sizes this program doesn't write
+         */
+        static PageFormat read(ByteBuffer header) throws IOException {
+            int version = header.getInt(VERSION_OFFSET);
+            if (version == 0) {
+                return new PageFormat(1, DEFAULT_BLOCK_SIZE, 19, FIXED, BTREE);
+            }
+            if (version != 2 && version != VERSION) {
+                throw new IOException("Index file has unknown format version " + version);
+            }
+            int encoding = header.getInt(ENCODING_OFFSET);
+            if (encoding != FIXED && encoding != PACKED) {
+                throw new IOException("Index file has unknown node encoding " + encoding);
+            }
+            int layout = version == 2 ? BTREE : header.getInt(LAYOUT_OFFSET);
+            if (layout != BTREE && layout != BPLUS) {
+                throw new IOException("Index file has unknown tree layout " + layout);
             }
+            PageFormat format = new PageFormat(version, header.getInt(BLOCK_SIZE_OFFSET), header.getInt(DEGREE_OFFSET), encoding, layout);
+            // the degree is always the one create works out for the page size
+            if (!isValidBlockSize(format.blockSize)
+                    || format.maxDegree != forBlockSize(format.blockSize, encoding, layout).maxDegree) {
+                throw new IOException("Index file header has a bad page size or degree");
+            }
+            return format;
         }
 
         /**
-         * helper method to call the recursive extract method
-         * @param indexFile instance of index file
-         * @param writer instance of print writer
+         * method that puts the format into a header block
+         * @param header buffer holding the header
          */
-        void extract(RandomAccessFile indexFile, PrintWriter writer) throws IOException {
-            // if tree is empty return null
-            if (rootID == 0) return;
+        void write(ByteBuffer header) {
+            header.putInt(VERSION_OFFSET, version);
+            header.putInt(BLOCK_SIZE_OFFSET, blockSize);
+            header.putInt(DEGREE_OFFSET, maxDegree);
+            header.putInt(ENCODING_OFFSET, packed ? PACKED : FIXED);
+            if (version >= 3) header.putInt(LAYOUT_OFFSET, bplus ? BPLUS : BTREE);
+        }
 
-            // if tree is not empty call extractRecursive
-            extractRecursive(indexFile, writer, rootID);
+        /**
+         * @return number of keys in the node stored in a block
+         */
+        int numKeys(ByteBuffer block) {
+            return packed ? block.getShort(0) & 0xFFFF : BTreeNode.numKeys(block);
         }
 
         /**
-         * recursive method to extract the keys and values from current node
-         * @param file instance of index file
-         * @param writer instance of print writer
-         * @param nodeID id of node to extract from
+         * @return true if the node stored in a block has no children
+         */
+        boolean isLeaf(ByteBuffer block) {
+            if (packed) return block.get(2) == 0;
+            return bplus ? block.getLong(LEAF_FLAG_OFFSET) != 0 : block.getLong(childrenOffset) == 0;
+        }
+
+        /**
+         * @return key i of the fixed node stored in a block
          */
-        void extractRecursive(RandomAccessFile file, PrintWriter writer, long nodeID) throws IOException {
-            BTreeNode node = readNode(file, nodeID);
+        long keyAt(ByteBuffer block, int i) {
+            return block.getLong(keysOffset + i * 8);
+        }
 
-            // loop through the keys of the node and send each one to output file
-            for ( int i = 0; i < node.keys.size(); i++) {
-                writer.println(node.keys.get(i) + ", " + node.values.get(i));
+        /**
+         * search for a key in the node stored in a block, without decoding it
+         * fixed nodes are binary searched, packed keys can only be read in order so they are scanned until one isn't smaller
+         * @param block block holding the node
+         * @param key key to find
+         * @return index of the key, or if it isn't there (-(index of the first bigger key) - 1)
+         */
+        int findKey(ByteBuffer block, long key) {
+            int numKeys = numKeys(block);
+            if (!packed) {
+                return BTreeNode.findKey(block, keysOffset, numKeys, key);
+            }
+            ByteBuffer in = block.duplicate();
+            in.position(PACKED_KEYS_OFFSET);
+            long current = 0;
+            for (int i = 0; i < numKeys; i++) {
+                current = i == 0 ? unzigzag(getVarint(in)) : current + getVarint(in);
+                if (current >= key) {
+                    return current == key ? i : -(i + 1);
+                }
             }
+            return -(numKeys + 1);
+        }
 
-            // loop through the children of current node and recurse back to print their keys/values
-            for (long childID : node.childPointers) {
-                extractRecursive(file, writer, childID);
+        /**
+         * @return value i of the node stored in a block
+         */
+        long valueAt(ByteBuffer block, int i) {
+            if (!packed) {
+                return block.getLong(valuesOffset + i * 8);
             }
+            return unzigzag(getVarint(skipVarints(block, block.getShort(PACKED_VALUES_OFFSET) & 0xFFFF, i)));
         }
 
         /**
-         * method to read how many keys a node has and return the instance
-         * @param file instance of index file
-         * @param blockID id for node we want to read
-         * @return returns a node instance
-         * @throws IOException
+         * @return child pointer i of the node stored in a block, 0 if there is none
          */
-        static BTreeNode readNode(RandomAccessFile file, long blockID) throws IOException {
-            // go to index 0 on file
-            file.seek(BLOCK_SIZE * blockID);
-            // create instance of node class with the specific block ID
-            BTreeNode specificNode = new BTreeNode(blockID);
-            // read the num of keys it has
-            specificNode.read(file);
-            return specificNode;
+        long childAt(ByteBuffer block, int i) {
+            // a B+tree leaf has its values where the children would be
+            if (bplus && isLeaf(block)) return 0;
+            if (!packed) {
+                return block.getLong(childrenOffset + i * 8);
+            }
+            if (block.get(2) == 0) return 0;
+            return getVarint(skipVarints(block, block.getShort(PACKED_CHILDREN_OFFSET) & 0xFFFF, i));
+        }
+
+        /**
+         * @return index of the child a key goes down to in a B+tree node, given what findKey returned for it
+         * (a key equal to a separator is in the child after it)
+         */
+        static int childFor(int i) {
+            return i >= 0 ? i + 1 : -i - 1;
+        }
+
+        /**
+         * @return buffer over a block positioned at the varint after the first count ones from offset
+         */
+        private static ByteBuffer skipVarints(ByteBuffer block, int offset, int count) {
+            ByteBuffer in = block.duplicate();
+            int position = offset;
+            while (count > 0) {
+                // the last byte of each varint is the one without the high bit
+                if (in.get(position++) >= 0) count--;
+            }
+            in.position(position);
+            return in;
+        }
+
+        /**
+         * @return bytes a value takes as an unsigned varint
+         */
+        static int varintSize(long value) {
+            return (64 - Long.numberOfLeadingZeros(value | 1) + 6) / 7;
+        }
+
+        /**
+         * writes a value as an unsigned varint, 7 bits per byte with the high bit set on every byte but the last
+         */
+        static void putVarint(ByteBuffer out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.put((byte) value);
+        }
+
+        /**
+         * reads an unsigned varint written by putVarint
+         */
+        static long getVarint(ByteBuffer in) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        /**
+         * @return a signed value mapped so small negative numbers are small too (0, -1, 1, -2 -> 0, 1, 2, 3)
+         */
+        static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        /**
+         * @return the signed value zigzag was given
+         */
+        static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
         }
     }
 
     /**
      * class that handles individual node actions
+     * keys, values and child pointers are kept in fixed arrays sized for a full node,
+     * so nodes can be reused for other blocks without allocating anything
      */
     static class BTreeNode {
+        // byte offsets of each field inside a block
+        static final int NUM_KEYS_OFFSET = 16;
+        static final int KEYS_OFFSET = 24;
+        // binary search stops halving once this many keys are left and scans them instead
+        // (SearchBenchmark shows a plain scan is still faster than halving up to a few dozen keys)
+        static final int LINEAR_SEARCH_KEYS = 32;
+
+        // sizes of the file the node is in
+        final PageFormat format;
+
         long blockID;
         long parentID;
-        long numKeys;
+        // next leaf in key order in a B+tree, 0 for the last leaf and for nodes with children
+        long next;
+        int numKeys;
+        int numChildren;
 
-        // list of keys, values, and child pointers for each node
-        List<Long> keys = new ArrayList<>();
-        List<Long> values = new ArrayList<>();
-        List<Long> childPointers = new ArrayList<>();
+        // arrays of keys, values, and child pointers for each node
+        final long[] keys;
+        final long[] values;
+        final long[] childPointers;
 
         /**
          * initializes a new node
+         * @param format sizes of the file the node is in
          * @param blockID current node id
          */
-        BTreeNode(long blockID) {
+        BTreeNode(PageFormat format, long blockID) {
+            this.format = format;
+            this.keys = new long[format.maxDegree];
+            this.values = new long[format.maxDegree];
+            this.childPointers = new long[format.childPointers];
+            reset(blockID);
+        }
+
+        /**
+         * empties the node so it can be used for another block
+         * @param blockID new node id
+         */
+        void reset(long blockID) {
             this.blockID = blockID;
             this.parentID = 0;
+            this.next = 0;
             this.numKeys = 0;
+            this.numChildren = 0;
+        }
+
+        /**
+         * @return true if the node has no children
+         */
+        boolean isLeaf() {
+            return numChildren == 0;
         }
 
         /**
-         * inserts the key and value into the array lists
+         * inserts the key and value at the end of the arrays
          * @param key key to insert
          * @param value value to insert
          */
-        void insert(Long key, Long value) {
+        void insert(long key, long value) {
             // add key and value to corresponding array
-            this.keys.add(key);
-            this.values.add(value);
+            this.keys[numKeys] = key;
+            this.values[numKeys] = value;
             this.numKeys++;
         }
 
         /**
-         * write changes back to index file
-         * @param file instance of index file
-         * @throws IOException
+         * inserts the key and value at an index, moving the later ones over
+         * @param i index to insert at
+         * @param key key to insert
+         * @param value value to insert
+         */
+        void insertAt(int i, long key, long value) {
+            System.arraycopy(keys, i, keys, i + 1, numKeys - i);
+            System.arraycopy(values, i, values, i + 1, numKeys - i);
+            keys[i] = key;
+            values[i] = value;
+            numKeys++;
+        }
+
+        /**
+         * binary search for a key in the node
+         * @param key key to find
+         * @return index of the key, or if it isn't there (-(index of the first bigger key) - 1)
+         */
+        int findKey(long key) {
+            return findKey(keys, numKeys, key);
+        }
+
+        /**
+         * binary search for a key in a sorted array of keys
+         * once only a few keys are left they are scanned in order, which is faster than more halving
+         * @param keys sorted keys
+         * @param numKeys number of keys used in the array
+         * @param key key to find
+         * @return index of the key, or if it isn't there (-(index of the first bigger key) - 1)
+         */
+        static int findKey(long[] keys, int numKeys, long key) {
+            // the first key that isn't smaller than the given key is somewhere in [low, high]
+            int low = 0;
+            int high = numKeys;
+            while (high - low > LINEAR_SEARCH_KEYS) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            while (low < high && keys[low] < key) {
+                low++;
+            }
+            return low < numKeys && keys[low] == key ? low : -(low + 1);
+        }
+
+        /**
+         * removes the key and value at an index, moving the later ones back
+         * @param i index to remove
+         */
+        void removeAt(int i) {
+            System.arraycopy(keys, i + 1, keys, i, numKeys - i - 1);
+            System.arraycopy(values, i + 1, values, i, numKeys - i - 1);
+            numKeys--;
+        }
+
+        /**
+         * adds a child pointer at the end
+         * @param childID block ID of the child
+         */
+        void addChild(long childID) {
+            childPointers[numChildren++] = childID;
+        }
+
+        /**
+         * inserts a child pointer at an index, moving the later ones over
+         * @param i index to insert at
+         * @param childID block ID of the child
+         */
+        void insertChild(int i, long childID) {
+            System.arraycopy(childPointers, i, childPointers, i + 1, numChildren - i);
+            childPointers[i] = childID;
+            numChildren++;
+        }
+
+        /**
+         * removes the child pointer at an index, moving the later ones back
+         * @param i index to remove
+         */
+        void removeChild(int i) {
+            System.arraycopy(childPointers, i + 1, childPointers, i, numChildren - i - 1);
+            numChildren--;
+        }
+
+        /**
+         * @return true if one more key, value and child might not fit, so the node has to be split before going into it
+         * packed nodes keep room for two more, since a split key that moves up can then have its value changed
+         */
+        boolean isFull() {
+            if (numKeys >= format.maxDegree) return true;
+            return format.packed && encodedSize() > format.blockSize - 2 * PageFormat.PACKED_ENTRY_BYTES;
+        }
+
+        /**
+         * @return true if the node can give up a key to a sibling and still have enough
+         * (more than minKeys for fixed nodes, a third of the block for packed ones)
+         * two nodes that both can't always fit in one node together with the key between them
+         */
+        boolean hasSpare() {
+            if (!format.packed) return numKeys > format.minKeys;
+            return numKeys > 1 && encodedSize() > format.blockSize / 3;
+        }
+
+        /**
+         * @return true if the node fits in its block
+         */
+        boolean fits() {
+            return !format.packed || encodedSize() <= format.blockSize;
+        }
+
+        /**
+         * @return bytes the node takes in its block, always the whole block for fixed nodes
+         */
+        int encodedSize() {
+            if (!format.packed) return format.blockSize;
+            int size = PageFormat.PACKED_KEYS_OFFSET;
+            boolean hasValues = !format.bplus || isLeaf();
+            for (int i = 0; i < numKeys; i++) {
+                size += PageFormat.varintSize(i == 0 ? PageFormat.zigzag(keys[0]) : keys[i] - keys[i - 1]);
+                if (hasValues) size += PageFormat.varintSize(PageFormat.zigzag(values[i]));
+            }
+            for (int i = 0; i < numChildren; i++) {
+                size += PageFormat.varintSize(childPointers[i]);
+            }
+            if (format.bplus && isLeaf()) size += PageFormat.varintSize(next);
+            return size;
+        }
+
+        /**
+         * put the node info into a buffer, using one full block starting at the buffer's position
+         * @param changedNodeInfo buffer to put the block into
          */
-        void write(RandomAccessFile file) throws IOException {
-            // indicate the needed block size
-            file.seek(blockID * BLOCK_SIZE);
-            ByteBuffer changedNodeInfo = ByteBuffer.allocate(BLOCK_SIZE);
+        void encode(ByteBuffer changedNodeInfo) {
+            if (format.packed) {
+                encodePacked(changedNodeInfo);
+                return;
+            }
+            int start = changedNodeInfo.position();
 
-            // put info into the array
+            // put info into the array, a B+tree leaf has the next leaf in place of the parent and says it is a leaf
             changedNodeInfo.putLong(blockID);
-            changedNodeInfo.putLong(parentID);
+            changedNodeInfo.putLong(format.bplus ? next : parentID);
             changedNodeInfo.putLong(numKeys);
+            if (format.bplus) changedNodeInfo.putLong(isLeaf() ? 1 : 0);
 
-            // loop through each array list and insert current key if their index is less than 19
-            for(int i = 0; i < MAX_DEGREE ; i++) {
-                changedNodeInfo.putLong(i < keys.size() ? keys.get(i) : 0);
+            // loop through each array and insert current key if their index is less than the max degree
+            for(int i = 0; i < format.maxDegree ; i++) {
+                changedNodeInfo.putLong(i < numKeys ? keys[i] : 0);
             }
 
-            // loop through each array list and insert current key if their index is less than 19
-            for(int i = 0; i < MAX_DEGREE ; i++) {
-                changedNodeInfo.putLong(i < values.size() ? values.get(i) : 0);
+            // loop through each array and insert current value if their index is less than the max degree
+            // (only leaves have values in a B+tree, and nodes with children only have children)
+            if (!format.bplus || isLeaf()) {
+                for(int i = 0; i < format.maxDegree ; i++) {
+                    changedNodeInfo.putLong(i < numKeys ? values[i] : 0);
+                }
             }
-            // loop through each array list and insert current key if their index is less than 19
-            for(int i = 0; i < CHILD_POINTERS ; i++) {
-                changedNodeInfo.putLong(i < childPointers.size() ? childPointers.get(i) : 0);
+            // loop through each array and insert current child if their index is less than the max degree + 1
+            if (!format.bplus || !isLeaf()) {
+                for(int i = 0; i < format.childPointers ; i++) {
+                    changedNodeInfo.putLong(i < numChildren ? childPointers[i] : 0);
+                }
             }
 
-            // write to file
-            file.write(changedNodeInfo.array());
+            // zero out the rest of the block
+            while (changedNodeInfo.position() < start + format.blockSize) {
+                changedNodeInfo.put((byte) 0);
+            }
         }
 
         /**
-         * read node info from the index file
-         * @param file
-         * @throws IOException
+         * put the node into a buffer in the packed layout, using one full block starting at the buffer's position
+         * keys are stored as the distance from the key before, which is never negative since keys are in order
+         * a B+tree node with children has no values, and a B+tree leaf has the next leaf where the children would be
+         * @param out buffer to put the block into
+         */
+        private void encodePacked(ByteBuffer out) {
+            int start = out.position();
+            out.putShort((short) numKeys);
+            out.put((byte) (isLeaf() ? 0 : 1));
+            // offsets of the values and children are filled in once the keys are written
+            out.putInt(0);
+
+            for (int i = 0; i < numKeys; i++) {
+                PageFormat.putVarint(out, i == 0 ? PageFormat.zigzag(keys[0]) : keys[i] - keys[i - 1]);
+            }
+            out.putShort(start + PageFormat.PACKED_VALUES_OFFSET, (short) (out.position() - start));
+            if (!format.bplus || isLeaf()) {
+                for (int i = 0; i < numKeys; i++) {
+                    PageFormat.putVarint(out, PageFormat.zigzag(values[i]));
+                }
+            }
+            out.putShort(start + PageFormat.PACKED_CHILDREN_OFFSET, (short) (out.position() - start));
+            for (int i = 0; i < numChildren; i++) {
+                PageFormat.putVarint(out, childPointers[i]);
+            }
+            if (format.bplus && isLeaf()) {
+                PageFormat.putVarint(out, next);
+            }
+            if (out.position() > start + format.blockSize) {
+                throw new IllegalStateException("Node " + blockID + " doesn't fit in its block");
+            }
+
+            // zero out the rest of the block
+            while (out.position() < start + format.blockSize) {
+                out.put((byte) 0);
+            }
+        }
+
+        /**
+         * read node info from a block in the packed layout, every field is read once, in order
+         * the block ID isn't stored, the node keeps the one it was given
+         * @param in buffer holding the block, read from position 0
          */
-        void read(RandomAccessFile file) throws IOException {
-            // indicate the needed block size
-            ByteBuffer nodeInfo = ByteBuffer.allocate(BLOCK_SIZE);
-            file.readFully(nodeInfo.array());
+        private void decodePacked(ByteBuffer in) {
+            ByteBuffer block = in.duplicate();
+            numKeys = block.getShort(0) & 0xFFFF;
+            boolean leaf = block.get(2) == 0;
+            parentID = 0;
+            next = 0;
+
+            block.position(PageFormat.PACKED_KEYS_OFFSET);
+            long key = 0;
+            for (int i = 0; i < numKeys; i++) {
+                key = i == 0 ? PageFormat.unzigzag(PageFormat.getVarint(block)) : key + PageFormat.getVarint(block);
+                keys[i] = key;
+            }
+            if (!format.bplus || leaf) {
+                for (int i = 0; i < numKeys; i++) {
+                    values[i] = PageFormat.unzigzag(PageFormat.getVarint(block));
+                }
+            }
+            numChildren = leaf ? 0 : numKeys + 1;
+            for (int i = 0; i < numChildren; i++) {
+                childPointers[i] = PageFormat.getVarint(block);
+            }
+            if (format.bplus && leaf) {
+                next = PageFormat.getVarint(block);
+            }
+        }
 
+        /**
+         * read node info from a block
+         * @param nodeInfo buffer holding the block, read from position 0
+         */
+        void decode(ByteBuffer nodeInfo) {
+            if (format.packed) {
+                decodePacked(nodeInfo);
+                return;
+            }
             // get info from array node
-            blockID = nodeInfo.getLong();
-            parentID = nodeInfo.getLong();
-            numKeys = nodeInfo.getLong();
+            blockID = nodeInfo.getLong(0);
+            numKeys = numKeys(nodeInfo);
+            if (format.bplus) {
+                decodeBPlus(nodeInfo);
+                return;
+            }
+            parentID = nodeInfo.getLong(8);
+
+            // get keys and values from array, only the first numKeys are used
+            for (int i = 0; i < numKeys; i++) {
+                keys[i] = format.keyAt(nodeInfo, i);
+                values[i] = format.valueAt(nodeInfo, i);
+            }
 
-            // get keys from array
-            for(int i = 0; i < MAX_DEGREE ; i++) {
-                long key = nodeInfo.getLong();
-                // only add key if i is less than numKeys
-                if (i < numKeys) keys.add(key);
+            // get child pointers from array, only non-zero children count
+            numChildren = 0;
+            for (int i = 0; i < format.childPointers; i++) {
+                long child = format.childAt(nodeInfo, i);
+                if (child != 0) childPointers[numChildren++] = child;
             }
+        }
 
-            // get values from array
-            for(int i = 0; i < MAX_DEGREE ; i++) {
-                long value = nodeInfo.getLong();
-                // only add key if i is less than numKeys
-                if (i < numKeys) values.add(value);
+        /**
+         * read a fixed B+tree node from a block, a leaf has values and the next leaf, a node with children
+         * has one more child than keys
+         * @param nodeInfo buffer holding the block, read from position 0
+         */
+        private void decodeBPlus(ByteBuffer nodeInfo) {
+            parentID = 0;
+            boolean leaf = format.isLeaf(nodeInfo);
+            next = leaf ? nodeInfo.getLong(8) : 0;
+            for (int i = 0; i < numKeys; i++) {
+                keys[i] = format.keyAt(nodeInfo, i);
+            }
+            if (leaf) {
+                for (int i = 0; i < numKeys; i++) {
+                    values[i] = format.valueAt(nodeInfo, i);
+                }
+                numChildren = 0;
+                return;
             }
+            numChildren = numKeys + 1;
+            for (int i = 0; i < numChildren; i++) {
+                childPointers[i] = nodeInfo.getLong(format.childrenOffset + i * 8);
+            }
+        }
+
+        /**
+         * @return number of keys in the node stored in a block
+         */
+        static int numKeys(ByteBuffer block) {
+            return (int) block.getLong(NUM_KEYS_OFFSET);
+        }
 
-            // get child pointers from array
-            for(int i = 0; i < CHILD_POINTERS ; i++) {
-                long child = nodeInfo.getLong();
-                // only add non-zero children
-                if (child != 0) childPointers.add(child);
+        /**
+         * binary search for a key in the fixed node stored in a block, without decoding it
+         * works the same way as the array version
+         * @param block block holding the node
+         * @param keysOffset byte offset of the first key
+         * @param numKeys number of keys in the node
+         * @param key key to find
+         * @return index of the key, or if it isn't there (-(index of the first bigger key) - 1)
+         */
+        static int findKey(ByteBuffer block, int keysOffset, int numKeys, long key) {
+            int low = 0;
+            int high = numKeys;
+            while (high - low > LINEAR_SEARCH_KEYS) {
+                int mid = (low + high) >>> 1;
+                if (block.getLong(keysOffset + mid * 8) < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
             }
+            while (low < high && block.getLong(keysOffset + low * 8) < key) {
+                low++;
+            }
+            return low < numKeys && block.getLong(keysOffset + low * 8) == key ? low : -(low + 1);
         }
+
     }
 }
 
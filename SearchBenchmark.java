@@ -0,0 +1,189 @@
+/**
+ * Benchmark for the cost of one lookup, comparing the old left to right key scan with the node's binary search
+ * - first inside single nodes of different sizes (19, 169, 681 and 2729 keys fill 512-byte, 4K, 16K and 64K pages),
+ *   with a plain binary search alongside to show why BTreeNode.findKey scans the last few keys
+ * - then end to end through BTree.search on a bulk loaded index that is fully cached
+ *
+ * compile with: javac BTreeProgram.java SearchBenchmark.java
+ * run with: java SearchBenchmark [number of pairs in the index] [page size of the index]
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class SearchBenchmark {
+    // how many times each measurement is repeated, the best one is reported
+    private static final int ROUNDS = 5;
+    private static final int LOOKUPS = 1_000_000;
+
+    // printed at the end so the JIT can't throw the work away
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        Random random = new Random(42);
+
+        System.out.println("in-node search, ns per node");
+        System.out.printf("%8s %10s %10s %10s%n", "keys", "linear", "binary", "findKey");
+        for (int keys : new int[] {19, 169, 681, 2729}) {
+            long[][] nodes = new long[1024][];
+            for (int n = 0; n < nodes.length; n++) {
+                nodes[n] = sortedKeys(random, keys);
+            }
+            long[] probes = probes(random, nodes, LOOKUPS);
+            double linear = best(() -> linearNodes(nodes, probes)) / LOOKUPS;
+            double binary = best(() -> binaryNodes(nodes, probes)) / LOOKUPS;
+            double findKey = best(() -> findKeyNodes(nodes, probes)) / LOOKUPS;
+            System.out.printf("%8d %10.1f %10.1f %10.1f%n", keys, linear, binary, findKey);
+        }
+
+        // bulk load an index with a pool big enough to hold all of it
+        File indexFile = File.createTempFile("search-benchmark", ".idx");
+        indexFile.delete();
+        indexFile.deleteOnExit();
+        BTreeProgram.main(new String[] {"create", indexFile.getPath(), "--page-size=" + pageSize});
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            // a 512-byte node holds 19 keys, so pairs / 8 blocks is plenty, and bigger pages need fewer
+            BTreeProgram.BTree tree = new BTreeProgram.BTree(file, (int) ((long) pairs * 512 / pageSize / 8) + 16);
+            BTreeProgram.BulkLoader loader = new BTreeProgram.BulkLoader(0.9, indexFile.getParentFile());
+            long[] keys = new long[pairs];
+            for (int i = 0; i < pairs; i++) {
+                keys[i] = random.nextLong();
+                loader.add(keys[i], i);
+            }
+            loader.build(file, tree);
+
+            // half of the lookups are hits, half are misses
+            long[] lookups = new long[LOOKUPS];
+            for (int i = 0; i < lookups.length; i++) {
+                lookups[i] = i % 2 == 0 ? keys[random.nextInt(pairs)] : random.nextLong();
+            }
+
+            // warm the pool so nothing is read from the file while timing
+            for (long key : lookups) tree.search(key);
+
+            System.out.println();
+            System.out.println("BTree.search on " + pairs + " cached pairs in " + pageSize + "-byte pages, ns per lookup");
+            double linear = best(() -> linearTree(tree, lookups)) / LOOKUPS;
+            double findKey = best(() -> searchTree(tree, lookups)) / LOOKUPS;
+            System.out.printf("%10s %10s%n", "linear", "findKey");
+            System.out.printf("%10.1f %10.1f%n", linear, findKey);
+            tree.close();
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    /**
+     * interface for one timed run
+     */
+    interface Run {
+        void run() throws IOException;
+    }
+
+    /**
+     * method that times a run a few times after warming it up
+     * @param run work to time
+     * @return fastest time in nanoseconds
+     */
+    private static double best(Run run) throws IOException {
+        run.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * @return count distinct random keys in order
+     */
+    private static long[] sortedKeys(Random random, int count) {
+        TreeSet<Long> keys = new TreeSet<>();
+        while (keys.size() < count) keys.add((long) random.nextInt(Integer.MAX_VALUE));
+        long[] sorted = new long[count];
+        int i = 0;
+        for (long key : keys) sorted[i++] = key;
+        return sorted;
+    }
+
+    /**
+     * @return lookup keys, every other one taken from a node so half of them hit
+     */
+    private static long[] probes(Random random, long[][] nodes, int count) {
+        long[] probes = new long[count];
+        for (int i = 0; i < count; i++) {
+            long[] node = nodes[i % nodes.length];
+            probes[i] = i % 2 == 0 ? node[random.nextInt(node.length)] : random.nextInt(Integer.MAX_VALUE);
+        }
+        return probes;
+    }
+
+    private static void linearNodes(long[][] nodes, long[] probes) {
+        long sum = 0;
+        for (int p = 0; p < probes.length; p++) {
+            long[] keys = nodes[p % nodes.length];
+            long key = probes[p];
+            // same scan the tree used before
+            int i = 0;
+            while (i < keys.length && key > keys[i]) i++;
+            sum += (i < keys.length && key == keys[i]) ? i : -i - 1;
+        }
+        sink += sum;
+    }
+
+    private static void binaryNodes(long[][] nodes, long[] probes) {
+        long sum = 0;
+        for (int p = 0; p < probes.length; p++) {
+            long[] keys = nodes[p % nodes.length];
+            sum += Arrays.binarySearch(keys, 0, keys.length, probes[p]);
+        }
+        sink += sum;
+    }
+
+    private static void findKeyNodes(long[][] nodes, long[] probes) {
+        long sum = 0;
+        for (int p = 0; p < probes.length; p++) {
+            long[] keys = nodes[p % nodes.length];
+            sum += BTreeProgram.BTreeNode.findKey(keys, keys.length, probes[p]);
+        }
+        sink += sum;
+    }
+
+    private static void searchTree(BTreeProgram.BTree tree, long[] lookups) throws IOException {
+        long sum = 0;
+        for (long key : lookups) {
+            Long value = tree.search(key);
+            if (value != null) sum += value;
+        }
+        sink += sum;
+    }
+
+    /**
+     * the tree's search as it was with the left to right scan, reading the same cached blocks
+     */
+    private static void linearTree(BTreeProgram.BTree tree, long[] lookups) throws IOException {
+        long sum = 0;
+        for (long key : lookups) {
+            long currentID = tree.rootID;
+            while (currentID != 0) {
+                BTreeProgram.BufferPool.Page page = tree.pool.pin(currentID);
+                ByteBuffer block = page.data;
+                int numKeys = BTreeProgram.BTreeNode.numKeys(block);
+                int i = 0;
+                while (i < numKeys && key > tree.format.keyAt(block, i)) i++;
+                if (i < numKeys && key == tree.format.keyAt(block, i)) {
+                    sum += tree.format.valueAt(block, i);
+                    tree.pool.unpin(page, false);
+                    break;
+                }
+                currentID = tree.format.childAt(block, i);
+                tree.pool.unpin(page, false);
+            }
+        }
+        sink += sum;
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ * Quick benchmark suite for the paths we gate upgrades on, run against generated data so every run sees the same pairs
+ * (the JMH benchmarks in src/jmh/java time the same paths in forked, warmed-up JVMs and are what upgrades are
+ * gated on, this one only needs javac)
+ * - insert: random and sequential keys into an empty index, one BTree.insert at a time
+ * - search: hits and misses on a bulk loaded index
+ * - load: the load command on csv files of each size (10^5 to 10^7 rows by default)
+ * - extract: the extract command on the loaded index
+ * search, load and extract are measured warm (files in the OS page cache, and for search the whole index in the pool)
+ * and cold (OS page cache dropped first when that is allowed, and for search an empty pool of the default size)
+ * each measurement is run once untimed and then ROUNDS times, and the median is reported as ns per pair
+ * results can be saved, and a later run compared against them fails if anything got slower than --tolerance allows
+ *
+ * compile with: javac BTreeProgram.java TreeBenchmark.java
+ * run with:
+ *   java TreeBenchmark generate rows filename.csv [--seed=N] [--order=random|sequential]
+ *   java TreeBenchmark run [--rows=100000,1000000,10000000] [--ops=1000000] [--rounds=5] [--seed=N]
+ *       [--page-size=N] [--encoding=fixed|packed] [--layout=btree|bplus] [--dir=path] [--save=results.csv]
+ *       [--baseline=results.csv] [--tolerance=10]
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class TreeBenchmark {
+    private static final long DEFAULT_SEED = 42;
+    // what /proc/sys/vm/drop_caches is sent to drop the clean pages of the OS page cache
+    private static final File DROP_CACHES = new File("/proc/sys/vm/drop_caches");
+
+    // options given on the command line as --name=value
+    private static final Map<String, String> options = new HashMap<>();
+
+    // printed at the end so the JIT can't throw the work away
+    private static long sink;
+    // set once a cold measurement couldn't drop the OS page cache
+    private static boolean cacheKept;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        String command = positional.isEmpty() ? "run" : positional.get(0);
+        long seed = Long.parseLong(option("seed", String.valueOf(DEFAULT_SEED)));
+
+        if (command.equals("generate")) {
+            if (positional.size() < 3) {
+                System.err.println("Error: generate needs a number of rows and a csv filename");
+                return;
+            }
+            boolean sequential = option("order", "random").equals("sequential");
+            generate(new File(positional.get(2)), Long.parseLong(positional.get(1)), seed, sequential);
+        } else if (command.equals("run")) {
+            if (!run(seed)) System.exit(1);
+        } else {
+            System.err.println("Error: Unknown command");
+        }
+    }
+
+    /**
+     * method that returns an option given on the command line, or a default if it wasn't given
+     */
+    private static String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * key of row i of the generated data, the rows are a shuffle of distinct keys
+     * (splitmix64's finalizer is one to one, so rows never repeat a key and key(rows + i) is never in the data)
+     * @param seed seed of the data set
+     * @param i row number
+     * @return key
+     */
+    static long key(long seed, long i) {
+        long z = seed * 0x9E3779B97F4A7C15L + i;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * method that writes a csv of key,value rows, the value of row i is i
+     * @param file csv file to write
+     * @param rows number of rows
+     * @param seed seed of the keys, the same seed always gives the same file
+     * @param sequential true for keys 0, 1, 2..., false for key(seed, i)
+     */
+    static void generate(File file, long rows, long seed, boolean sequential) throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            for (long i = 0; i < rows; i++) {
+                writer.write(Long.toString(sequential ? i : key(seed, i)));
+                writer.write(',');
+                writer.write(Long.toString(i));
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * method that runs every benchmark for each number of rows, prints the table, and saves or compares it
+     * @param seed seed of the generated data
+     * @return false if a result was slower than the baseline allows
+     */
+    private static boolean run(long seed) throws IOException, InterruptedException {
+        int rounds = Integer.parseInt(option("rounds", "5"));
+        long ops = Long.parseLong(option("ops", "1000000"));
+        File dir = new File(option("dir", System.getProperty("java.io.tmpdir")));
+        String[] createOptions = {"--page-size=" + option("page-size", "512"), "--encoding=" + option("encoding", "fixed"),
+                "--layout=" + option("layout", "btree")};
+
+        // name,rows -> median ns per pair, in the order they were measured
+        Map<String, Double> results = new LinkedHashMap<>();
+        System.out.printf("%-22s %10s %12s %14s%n", "benchmark", "rows", "ns/pair", "pairs/s");
+        for (String rowsOption : option("rows", "100000,1000000,10000000").split(",")) {
+            long rows = Long.parseLong(rowsOption.trim());
+            // generated files are kept, they only depend on the seed and the number of rows
+            File csv = new File(dir, "tree-benchmark-" + seed + "-" + rows + ".csv");
+            if (!csv.exists()) generate(csv, rows, seed, false);
+            File index = new File(dir, "tree-benchmark-" + rows + ".idx");
+            File extracted = new File(dir, "tree-benchmark-" + rows + ".out");
+
+            int inserts = (int) Math.min(rows, ops);
+            record(results, "insert-random", rows, median(rounds, () -> {
+                long[] keys = new long[inserts];
+                for (int i = 0; i < inserts; i++) keys[i] = key(seed, i);
+                return insert(index, createOptions, keys);
+            }) / inserts);
+            record(results, "insert-sequential", rows, median(rounds, () -> {
+                long[] keys = new long[inserts];
+                for (int i = 0; i < inserts; i++) keys[i] = i;
+                return insert(index, createOptions, keys);
+            }) / inserts);
+
+            for (boolean cold : new boolean[] {false, true}) {
+                record(results, "load-" + (cold ? "cold" : "warm"), rows, median(rounds, () -> {
+                    create(index, createOptions);
+                    if (cold) dropCaches();
+                    long start = System.nanoTime();
+                    BTreeProgram.main(new String[] {"load", index.getPath(), csv.getPath()});
+                    return System.nanoTime() - start;
+                }) / rows);
+            }
+
+            // the last load is the index the rest of the benchmarks read
+            for (boolean cold : new boolean[] {false, true}) {
+                record(results, "extract-" + (cold ? "cold" : "warm"), rows, median(rounds, () -> {
+                    extracted.delete();
+                    if (cold) dropCaches();
+                    long start = System.nanoTime();
+                    BTreeProgram.main(new String[] {"extract", index.getPath(), extracted.getPath()});
+                    return System.nanoTime() - start;
+                }) / rows);
+            }
+            extracted.delete();
+
+            // hits are rows of the data, misses are keys past its last row
+            Random random = new Random(seed);
+            long[] hits = new long[(int) ops];
+            long[] misses = new long[(int) ops];
+            for (int i = 0; i < ops; i++) {
+                hits[i] = key(seed, (long) (random.nextDouble() * rows));
+                misses[i] = key(seed, rows + i);
+            }
+            for (boolean cold : new boolean[] {false, true}) {
+                for (boolean hit : new boolean[] {true, false}) {
+                    long[] lookups = hit ? hits : misses;
+                    record(results, "search-" + (hit ? "hit" : "miss") + "-" + (cold ? "cold" : "warm"), rows,
+                            median(rounds, () -> search(index, lookups, cold)) / ops);
+                }
+            }
+            index.delete();
+        }
+
+        if (cacheKept) {
+            System.out.println("(cold runs kept the OS page cache, " + DROP_CACHES + " can only be written by root)");
+        }
+        System.out.println("(checksum " + sink + ")");
+
+        String save = options.get("save");
+        if (save != null) {
+            try (PrintWriter writer = new PrintWriter(new FileWriter(save))) {
+                for (Map.Entry<String, Double> result : results.entrySet()) {
+                    writer.printf("%s,%.1f%n", result.getKey(), result.getValue());
+                }
+            }
+        }
+        String baseline = options.get("baseline");
+        return baseline == null || compare(results, new File(baseline), Double.parseDouble(option("tolerance", "10")));
+    }
+
+    /**
+     * method that prints one result and keeps it for saving and comparing
+     */
+    private static void record(Map<String, Double> results, String name, long rows, double nsPerPair) {
+        results.put(name + "," + rows, nsPerPair);
+        System.out.printf("%-22s %10d %12.1f %14.0f%n", name, rows, nsPerPair, 1e9 / nsPerPair);
+    }
+
+    /**
+     * method that compares results with saved ones and prints every one that got slower than allowed
+     * benchmarks that aren't in both are skipped
+     * @param results results of this run
+     * @param baseline file saved by an earlier run with --save
+     * @param tolerance percent a result can be slower than its baseline
+     * @return true if nothing got too slow
+     */
+    private static boolean compare(Map<String, Double> results, File baseline, double tolerance) throws IOException {
+        boolean passed = true;
+        try (BufferedReader reader = new BufferedReader(new FileReader(baseline))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.lastIndexOf(',');
+                if (comma < 0) continue;
+                Double result = results.get(line.substring(0, comma));
+                if (result == null) continue;
+                double before = Double.parseDouble(line.substring(comma + 1));
+                if (result > before * (1 + tolerance / 100)) {
+                    System.out.printf("REGRESSION %s: %.1f ns/pair, was %.1f (+%.0f%%)%n", line.substring(0, comma),
+                            result, before, (result / before - 1) * 100);
+                    passed = false;
+                }
+            }
+        }
+        System.out.println(passed ? "no regressions against " + baseline : "slower than " + baseline);
+        return passed;
+    }
+
+    /**
+     * interface for one timed run, which returns how many nanoseconds its timed part took
+     */
+    interface Run {
+        long run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * method that times a run a few times after running it once to warm up
+     * the median is used rather than the best so a comparison isn't thrown off by one lucky round
+     * @param rounds number of timed rounds
+     * @param run work to time
+     * @return median time in nanoseconds
+     */
+    private static double median(int rounds, Run run) throws IOException, InterruptedException {
+        run.run();
+        long[] times = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            times[i] = run.run();
+        }
+        Arrays.sort(times);
+        return rounds % 2 == 1 ? times[rounds / 2] : (times[rounds / 2 - 1] + times[rounds / 2]) / 2.0;
+    }
+
+    /**
+     * method that makes a new, empty index with every create option the benchmark was given
+     */
+    private static void create(File index, String[] createOptions) throws IOException {
+        index.delete();
+        String[] args = new String[2 + createOptions.length];
+        args[0] = "create";
+        args[1] = index.getPath();
+        System.arraycopy(createOptions, 0, args, 2, createOptions.length);
+        BTreeProgram.main(args);
+    }
+
+    /**
+     * method that inserts keys into a new index, the time includes writing the changed blocks at the end
+     * @return nanoseconds taken
+     */
+    private static long insert(File index, String[] createOptions, long[] keys) throws IOException {
+        create(index, createOptions);
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            long start = System.nanoTime();
+            BTreeProgram.BTree tree = new BTreeProgram.BTree(file);
+            for (int i = 0; i < keys.length; i++) {
+                tree.insert(keys[i], i);
+            }
+            tree.close();
+            return System.nanoTime() - start;
+        } finally {
+            index.delete();
+        }
+    }
+
+    /**
+     * method that looks up keys in an index
+     * warm, the pool holds the whole index and is filled before the timing starts
+     * cold, the pool is the default size and starts empty, with the OS page cache dropped first
+     * @return nanoseconds taken
+     */
+    private static long search(File index, long[] lookups, boolean cold) throws IOException, InterruptedException {
+        if (cold) dropCaches();
+        try (RandomAccessFile file = new RandomAccessFile(index, "r")) {
+            BTreeProgram.BTree tree;
+            if (cold) {
+                tree = new BTreeProgram.BTree(file);
+            } else {
+                int blockSize = BTreeProgram.PageFormat.read(file).blockSize;
+                tree = new BTreeProgram.BTree(file, (int) (file.length() / blockSize) + 16);
+                for (long key : lookups) tree.search(key);
+            }
+            long sum = 0;
+            long start = System.nanoTime();
+            for (long key : lookups) {
+                Long value = tree.search(key);
+                if (value != null) sum += value;
+            }
+            long time = System.nanoTime() - start;
+            sink += sum;
+            // nothing was changed, so this only lets the store go
+            tree.close();
+            return time;
+        }
+    }
+
+    /**
+     * method that empties the OS page cache so the next reads come from disk, if this process is allowed to
+     */
+    private static void dropCaches() throws IOException, InterruptedException {
+        if (!DROP_CACHES.canWrite()) {
+            cacheKept = true;
+            return;
+        }
+        // only clean pages are dropped, so write out the dirty ones first
+        new ProcessBuilder("sync").inheritIO().start().waitFor();
+        try (Writer writer = new FileWriter(DROP_CACHES)) {
+            writer.write("1");
+        }
+    }
+}
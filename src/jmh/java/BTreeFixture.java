@@ -0,0 +1,75 @@
+/**
+ * the benchmarks' way into the program, see btree.jmh.Fixture
+ * BTreeProgram and TreeBenchmark are used as they are, so the benchmarks measure the same code javac builds
+ */
+
+import btree.jmh.Fixture;
+
+import java.io.*;
+
+public class BTreeFixture implements Fixture {
+    @Override
+    public long key(long seed, long i) {
+        return TreeBenchmark.key(seed, i);
+    }
+
+    @Override
+    public void generate(File csv, long rows, long seed, boolean sequential) throws IOException {
+        TreeBenchmark.generate(csv, rows, seed, sequential);
+    }
+
+    @Override
+    public void command(String... args) throws IOException {
+        BTreeProgram.main(args);
+    }
+
+    @Override
+    public Tree open(File index, boolean wholeIndex) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(index, "rw");
+        try {
+            BTreeProgram.BTree tree;
+            if (wholeIndex) {
+                int blockSize = BTreeProgram.PageFormat.read(file).blockSize;
+                tree = new BTreeProgram.BTree(file, (int) (file.length() / blockSize) + 16);
+            } else {
+                tree = new BTreeProgram.BTree(file);
+            }
+            return new OpenTree(file, tree);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * class for a tree and the file it was opened on
+     */
+    private static class OpenTree implements Tree {
+        private final RandomAccessFile file;
+        private final BTreeProgram.BTree tree;
+
+        OpenTree(RandomAccessFile file, BTreeProgram.BTree tree) {
+            this.file = file;
+            this.tree = tree;
+        }
+
+        @Override
+        public void insert(long key, long value) throws IOException {
+            tree.insert(key, value);
+        }
+
+        @Override
+        public Long search(long key) throws IOException {
+            return tree.search(key);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                tree.close();
+            } finally {
+                file.close();
+            }
+        }
+    }
+}
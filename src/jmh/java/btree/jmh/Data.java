@@ -0,0 +1,100 @@
+package btree.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * the generated data and index files the benchmarks share
+ * files go in the temp directory (pass -jvmArgs -Djava.io.tmpdir=path to JMH to move them), and the csv files are
+ * named like TreeBenchmark's so both reuse the same generated data
+ */
+public final class Data {
+    static final long SEED = 42;
+    static final Fixture FIXTURE = Fixture.get();
+    static final File DIR = new File(System.getProperty("java.io.tmpdir"));
+    // what /proc/sys/vm/drop_caches is sent to drop the clean pages of the OS page cache
+    private static final File DROP_CACHES = new File("/proc/sys/vm/drop_caches");
+
+    private Data() {
+    }
+
+    /**
+     * state for the create options the benchmarked indexes are made with
+     */
+    @State(Scope.Benchmark)
+    public static class Format {
+        @Param("512")
+        public String pageSize;
+        @Param("fixed")
+        public String encoding;
+        @Param("btree")
+        public String layout;
+
+        /**
+         * method that makes a new, empty index with these options
+         */
+        void create(File index) throws IOException {
+            index.delete();
+            FIXTURE.command("create", index.getPath(), "--page-size=" + pageSize, "--encoding=" + encoding,
+                    "--layout=" + layout);
+        }
+    }
+
+    /**
+     * state for the generated csv of each size, which is written once and kept
+     */
+    @State(Scope.Benchmark)
+    public static class Rows {
+        @Param({"100000", "1000000", "10000000"})
+        public long rows;
+        File csv;
+
+        @Setup(Level.Trial)
+        public void generate() throws IOException {
+            csv = new File(DIR, "tree-benchmark-" + SEED + "-" + rows + ".csv");
+            if (!csv.exists()) FIXTURE.generate(csv, rows, SEED, false);
+        }
+    }
+
+    /**
+     * state for an index loaded from the generated csv, for the benchmarks that read one
+     */
+    @State(Scope.Benchmark)
+    public static class Loaded {
+        File index;
+
+        @Setup(Level.Trial)
+        public void load(Rows rows, Format format) throws IOException {
+            index = new File(DIR, "jmh-" + rows.rows + ".idx");
+            format.create(index);
+            FIXTURE.command("load", index.getPath(), rows.csv.getPath());
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() {
+            index.delete();
+        }
+    }
+
+    /**
+     * method that empties the OS page cache so the next reads come from disk, if this process is allowed to
+     * when it isn't (not root) the cold benchmarks only start from an empty pool
+     */
+    static void dropCaches() throws IOException {
+        if (!DROP_CACHES.canWrite()) return;
+        // only clean pages are dropped, so write out the dirty ones first
+        try {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for sync", e);
+        }
+        try (Writer writer = new FileWriter(DROP_CACHES)) {
+            writer.write("1");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package btree.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the extract command on an index loaded from the generated csv, written to a new csv file
+ * each iteration is one extract, timed on its own
+ * - warm: the index is in the OS page cache from the extracts before
+ * - cold: the OS page cache is dropped before the extract
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(2)
+public class ExtractBenchmarks {
+    /**
+     * state for the file each extract writes, which can't be there yet
+     */
+    @State(Scope.Thread)
+    public static class Warm {
+        File output;
+
+        @Setup(Level.Iteration)
+        public void delete(Data.Rows rows) {
+            output = new File(Data.DIR, "jmh-extract-" + rows.rows + ".csv");
+            output.delete();
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteLast() {
+            output.delete();
+        }
+    }
+
+    /**
+     * state for the file each extract writes, with the OS page cache dropped after the old one is deleted
+     */
+    @State(Scope.Thread)
+    public static class Cold {
+        File output;
+
+        @Setup(Level.Iteration)
+        public void delete(Data.Rows rows) throws IOException {
+            output = new File(Data.DIR, "jmh-extract-" + rows.rows + ".csv");
+            output.delete();
+            Data.dropCaches();
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteLast() {
+            output.delete();
+        }
+    }
+
+    @Benchmark
+    public void extractWarm(Warm warm, Data.Loaded loaded) throws IOException {
+        Data.FIXTURE.command("extract", loaded.index.getPath(), warm.output.getPath());
+    }
+
+    @Benchmark
+    public void extractCold(Cold cold, Data.Loaded loaded) throws IOException {
+        Data.FIXTURE.command("extract", loaded.index.getPath(), cold.output.getPath());
+    }
+}
@@ -0,0 +1,57 @@
+package btree.jmh;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * what the benchmarks use of the program
+ * the program's classes are in the default package, which JMH doesn't allow benchmarks in and which a class in a
+ * package can't name, so BTreeFixture (in the default package) implements this and is looked up by name
+ */
+public interface Fixture {
+    /**
+     * key of row i of the generated data, TreeBenchmark's splitmix64 generator
+     */
+    long key(long seed, long i);
+
+    /**
+     * method that writes a csv of key,value rows with TreeBenchmark's generator, the same seed gives the same file
+     */
+    void generate(File csv, long rows, long seed, boolean sequential) throws IOException;
+
+    /**
+     * method that runs a command the way it runs from the command line
+     * @param args command, files and options
+     */
+    void command(String... args) throws IOException;
+
+    /**
+     * method that opens an index
+     * @param index index file
+     * @param wholeIndex true for a pool that holds every block of the file, false for the default size
+     * @return open tree, closing it writes changed blocks and closes the file
+     */
+    Tree open(File index, boolean wholeIndex) throws IOException;
+
+    /**
+     * an open index
+     */
+    interface Tree extends Closeable {
+        void insert(long key, long value) throws IOException;
+
+        Long search(long key) throws IOException;
+    }
+
+    /**
+     * method that finds the fixture in the default package
+     * @return the fixture
+     */
+    static Fixture get() {
+        try {
+            return (Fixture) Class.forName("BTreeFixture").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BTreeFixture isn't on the class path", e);
+        }
+    }
+}
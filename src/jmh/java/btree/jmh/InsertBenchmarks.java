@@ -0,0 +1,57 @@
+package btree.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BTree.insert of random and sequential keys into an empty index, one insert at a time
+ * the time of an invocation includes closing the tree, which writes the changed blocks, and is reported per insert
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Thread)
+public class InsertBenchmarks {
+    static final int INSERTS = 100_000;
+
+    @Param({"random", "sequential"})
+    public String order;
+
+    private long[] keys;
+    private File index;
+    private Fixture.Tree tree;
+
+    @Setup(Level.Trial)
+    public void keys() {
+        keys = new long[INSERTS];
+        for (int i = 0; i < INSERTS; i++) {
+            keys[i] = order.equals("sequential") ? i : Data.FIXTURE.key(Data.SEED, i);
+        }
+        index = new File(Data.DIR, "jmh-insert.idx");
+    }
+
+    @Setup(Level.Invocation)
+    public void open(Data.Format format) throws IOException {
+        format.create(index);
+        tree = Data.FIXTURE.open(index, false);
+    }
+
+    @TearDown(Level.Invocation)
+    public void delete() {
+        index.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSERTS)
+    public void insert() throws IOException {
+        for (int i = 0; i < INSERTS; i++) {
+            tree.insert(keys[i], i);
+        }
+        tree.close();
+    }
+}
@@ -0,0 +1,69 @@
+package btree.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the load command on the generated csv into a new, empty index, so the tree is bulk built
+ * each iteration is one load, timed on its own
+ * - warm: the csv is in the OS page cache from the loads before
+ * - cold: the OS page cache is dropped before the load
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(2)
+public class LoadBenchmarks {
+    /**
+     * state for the empty index each load goes into
+     */
+    @State(Scope.Thread)
+    public static class Warm {
+        File index;
+
+        @Setup(Level.Iteration)
+        public void create(Data.Rows rows, Data.Format format) throws IOException {
+            index = new File(Data.DIR, "jmh-load-" + rows.rows + ".idx");
+            format.create(index);
+        }
+
+        @TearDown(Level.Iteration)
+        public void delete() {
+            index.delete();
+        }
+    }
+
+    /**
+     * state for the empty index each load goes into, with the OS page cache dropped after it is made
+     */
+    @State(Scope.Thread)
+    public static class Cold {
+        File index;
+
+        @Setup(Level.Iteration)
+        public void create(Data.Rows rows, Data.Format format) throws IOException {
+            index = new File(Data.DIR, "jmh-load-" + rows.rows + ".idx");
+            format.create(index);
+            Data.dropCaches();
+        }
+
+        @TearDown(Level.Iteration)
+        public void delete() {
+            index.delete();
+        }
+    }
+
+    @Benchmark
+    public void loadWarm(Warm warm, Data.Rows rows) throws IOException {
+        Data.FIXTURE.command("load", warm.index.getPath(), rows.csv.getPath());
+    }
+
+    @Benchmark
+    public void loadCold(Cold cold, Data.Rows rows) throws IOException {
+        Data.FIXTURE.command("load", cold.index.getPath(), rows.csv.getPath());
+    }
+}
@@ -0,0 +1,116 @@
+package btree.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BTree.search of keys that are in a loaded index (hits) and keys that aren't (misses), reported per lookup
+ * - warm: the pool holds the whole index and was filled before measuring
+ * - cold: every invocation opens the index with a pool of the default size, after dropping the OS page cache
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(2)
+public class SearchBenchmarks {
+    static final int LOOKUPS = 100_000;
+
+    /**
+     * state for the keys looked up, hits are rows of the data and misses are keys past its last row
+     */
+    @State(Scope.Benchmark)
+    public static class Keys {
+        long[] hits;
+        long[] misses;
+
+        @Setup(Level.Trial)
+        public void keys(Data.Rows rows) {
+            Random random = new Random(Data.SEED);
+            hits = new long[LOOKUPS];
+            misses = new long[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) {
+                hits[i] = Data.FIXTURE.key(Data.SEED, (long) (random.nextDouble() * rows.rows));
+                misses[i] = Data.FIXTURE.key(Data.SEED, rows.rows + i);
+            }
+        }
+    }
+
+    /**
+     * state for the loaded index opened once, with every block read before measuring
+     */
+    @State(Scope.Thread)
+    public static class Warm {
+        Fixture.Tree tree;
+
+        @Setup(Level.Trial)
+        public void open(Data.Loaded loaded, Keys keys) throws IOException {
+            tree = Data.FIXTURE.open(loaded.index, true);
+            search(tree, keys.hits);
+            search(tree, keys.misses);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            tree.close();
+        }
+    }
+
+    /**
+     * state for the loaded index opened again for every invocation, with nothing cached
+     */
+    @State(Scope.Thread)
+    public static class Cold {
+        Fixture.Tree tree;
+
+        @Setup(Level.Invocation)
+        public void open(Data.Loaded loaded) throws IOException {
+            Data.dropCaches();
+            tree = Data.FIXTURE.open(loaded.index, false);
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            tree.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long hitWarm(Warm warm, Keys keys) throws IOException {
+        return search(warm.tree, keys.hits);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long missWarm(Warm warm, Keys keys) throws IOException {
+        return search(warm.tree, keys.misses);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long hitCold(Cold cold, Keys keys) throws IOException {
+        return search(cold.tree, keys.hits);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long missCold(Cold cold, Keys keys) throws IOException {
+        return search(cold.tree, keys.misses);
+    }
+
+    /**
+     * method that looks up every key, the sum of the values found is returned so JMH keeps the lookups
+     */
+    static long search(Fixture.Tree tree, long[] keys) throws IOException {
+        long sum = 0;
+        for (long key : keys) {
+            Long value = tree.search(key);
+            if (value != null) sum += value;
+        }
+        return sum;
+    }
+}